@@ -0,0 +1,369 @@
+package com.sohu.smc.common.zk;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.netflix.curator.framework.CuratorFramework;
+import com.netflix.curator.framework.api.BackgroundCallback;
+import com.netflix.curator.framework.api.CuratorEvent;
+import com.netflix.curator.utils.ZKPaths;
+import com.netflix.curator.x.discovery.ServiceInstance;
+import com.netflix.curator.x.discovery.ServiceInstanceBuilder;
+import com.netflix.curator.x.discovery.details.InstanceSerializer;
+import org.apache.zookeeper.KeeperException;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * DiscoveryClientUtil / DiscoveryServiceUtil 的异步接口, 调用线程不会阻塞在zk I/O上.
+ * <p/>
+ * 查询和注册使用 curator 的 background callback, 回调在指定的 executor 中执行;
+ * 未缓存服务的 getService/getAllService 用 background 请求直接读实例作答, 同时在 executor 中建立缓存
+ * (curator 1.x 的 ServiceCache.start 只有同步接口), 多个服务名可以并发预热.
+ * 客户端查询复用 DiscoveryClientUtil 已有的连接; 其他操作的 SessionPool 会话在 executor 中取得, 建立会话也不会阻塞调用线程.
+ * 所有 future 在 timeoutMs 后以 TimeoutException 失败, 先完成的 future 会取消自己的超时任务.
+ * <pre>
+ *     AsyncDiscoveryUtil async = new AsyncDiscoveryUtil(clientUtil, serviceUtil, executor, 3000);
+ *     Futures.addCallback(async.getService("logmerge"), callback);
+ * </pre>
+ * User: shijinkui
+ */
+public class AsyncDiscoveryUtil {
+
+    private static final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "zk-async-timeout");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    static {
+        //completed operations drop their timeout task instead of keeping it queued until it fires
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    private final DiscoveryClientUtil clientUtil;
+    private final DiscoveryServiceUtil serviceUtil;
+    private final ListeningExecutorService executor;
+    private final long timeoutMs;
+    private final InstanceSerializer<String> serializer = CompactInstanceSerializer.fromConfig();
+
+    /**
+     * @param clientUtil  客户端查询, 不使用时可以为null
+     * @param serviceUtil 服务端注册, 不使用时可以为null
+     * @param executor    执行回调和建立缓存的线程池
+     * @param timeoutMs   单个操作的超时时间
+     */
+    public AsyncDiscoveryUtil(DiscoveryClientUtil clientUtil, DiscoveryServiceUtil serviceUtil, ExecutorService executor, long timeoutMs) {
+        Preconditions.checkArgument(timeoutMs > 0, "timeout must be positive.");
+        this.clientUtil = clientUtil;
+        this.serviceUtil = serviceUtil;
+        this.executor = MoreExecutors.listeningDecorator(executor);
+        this.timeoutMs = timeoutMs;
+    }
+
+    /**
+     * 异步 getService, 已缓存的服务直接在调用线程返回.
+     * 未缓存时随机返回一个直接读到的实例, 这个实例没有经过选择策略, 不需要 release.
+     *
+     * @param serviceName
+     * @return
+     */
+    public ListenableFuture<ServiceInstance<String>> getService(final String serviceName) {
+        Preconditions.checkState(clientUtil != null, "no client util.");
+        if (clientUtil.isCached(serviceName)) {
+            return Futures.immediateFuture(clientUtil.getService(serviceName));
+        }
+
+        return Futures.transform(getAllService(serviceName), new Function<List<ServiceInstance<String>>, ServiceInstance<String>>() {
+            @Override
+            public ServiceInstance<String> apply(List<ServiceInstance<String>> list) {
+                return list.isEmpty() ? null : list.get(ThreadLocalRandom.current().nextInt(list.size()));
+            }
+        });
+    }
+
+    /**
+     * 异步 getAllService, 已缓存的服务直接在调用线程返回, 未缓存时用 background 请求读取
+     *
+     * @param serviceName
+     * @return
+     */
+    public ListenableFuture<List<ServiceInstance<String>>> getAllService(final String serviceName) {
+        Preconditions.checkState(clientUtil != null, "no client util.");
+        if (clientUtil.isCached(serviceName)) {
+            return Futures.immediateFuture(clientUtil.getAllService(serviceName));
+        }
+
+        //later calls are answered from the cache once it is built
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                clientUtil.warm(serviceName);
+            }
+        });
+        return query(clientUtil.currentClient(), clientUtil.getConnectString(), clientUtil.getBasePath(), serviceName);
+    }
+
+    /**
+     * 异步 getServiceList, 直接读zk, 子节点数据并发读取
+     *
+     * @param serviceName
+     * @return
+     */
+    public ListenableFuture<List<ServiceInstance<String>>> getServiceList(final String serviceName) {
+        Preconditions.checkState(serviceUtil != null, "no service util.");
+        return query(null, PropertyConfig.getZookeeperAddress(), serviceUtil.getBasePath(), serviceName);
+    }
+
+    /**
+     * @param shared 已有的连接, 为null时在 executor 中从 SessionPool 取得会话
+     */
+    private ListenableFuture<List<ServiceInstance<String>>> query(CuratorFramework shared, final String connectString, final String basePath, final String serviceName) {
+        Preconditions.checkArgument(serviceName != null, "service name must't be null.");
+
+        final SettableFuture<List<ServiceInstance<String>>> future = SettableFuture.create();
+        final String servicePath = ZKPaths.makePath(basePath, serviceName);
+        if (shared != null) {
+            children(shared, servicePath, future);
+            return timed(future);
+        }
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final SessionPool.Lease lease;
+                try {
+                    lease = SessionPool.getInstance().acquire(connectString, basePath);
+                } catch (Exception e) {
+                    future.setException(e);
+                    return;
+                }
+                future.addListener(new Runnable() {
+                    @Override
+                    public void run() {
+                        lease.close();
+                    }
+                }, MoreExecutors.sameThreadExecutor());
+                if (!future.isDone()) {
+                    children(lease.client(), servicePath, future);
+                }
+            }
+        });
+        return timed(future);
+    }
+
+    private void children(CuratorFramework current, final String servicePath, final SettableFuture<List<ServiceInstance<String>>> future) {
+        try {
+            current.getChildren().inBackground(new BackgroundCallback() {
+                @Override
+                public void processResult(CuratorFramework client, CuratorEvent event) throws Exception {
+                    if (event.getResultCode() == KeeperException.Code.NONODE.intValue()) {
+                        future.set(Lists.<ServiceInstance<String>>newArrayList());
+                        return;
+                    }
+                    if (event.getResultCode() != KeeperException.Code.OK.intValue()) {
+                        future.setException(KeeperException.create(KeeperException.Code.get(event.getResultCode()), servicePath));
+                        return;
+                    }
+
+                    List<ListenableFuture<ServiceInstance<String>>> children = Lists.newArrayList();
+                    for (String id : event.getChildren()) {
+                        children.add(getData(client, ZKPaths.makePath(servicePath, id)));
+                    }
+                    //instances deleted between getChildren and getData come back as null
+                    Futures.addCallback(Futures.successfulAsList(children), new FutureCallback<List<ServiceInstance<String>>>() {
+                        @Override
+                        public void onSuccess(List<ServiceInstance<String>> result) {
+                            List<ServiceInstance<String>> list = Lists.newArrayListWithCapacity(result.size());
+                            for (ServiceInstance<String> instance : result) {
+                                if (instance != null) {
+                                    list.add(instance);
+                                }
+                            }
+                            future.set(list);
+                        }
+
+                        @Override
+                        public void onFailure(Throwable t) {
+                            future.setException(t);
+                        }
+                    });
+                }
+            }, executor).forPath(servicePath);
+        } catch (Exception e) {
+            future.setException(e);
+        }
+    }
+
+    /**
+     * 异步 regist, 重复校验和节点创建都在后台完成
+     *
+     * @param name
+     * @param address
+     * @param port
+     * @param description
+     * @return 是否注册成功, 已存在时为false
+     */
+    public ListenableFuture<Boolean> regist(String name, String address, int port, String description) {
+        Preconditions.checkState(serviceUtil != null, "no service util.");
+        if (serviceUtil.getLeaseManager().isDraining()) {
+            return Futures.immediateFuture(false);
+        }
+
+        final ServiceInstance<String> instance;
+        try {
+            ServiceInstanceBuilder<String> builder = ServiceInstance.<String>builder().address(address).port(port).payload(DiscoveryServiceUtil.payloadOf(description, PropertyConfig.getZone())).name(name).serviceType(serviceUtil.getNodetype());
+            if (PropertyConfig.isDeterministicId()) {
+                builder.id(DiscoveryServiceUtil.idOf(name, address, port));
+            }
+            instance = builder.build();
+        } catch (Exception e) {
+            return Futures.immediateFailedFuture(e);
+        }
+
+        final SettableFuture<Boolean> future = SettableFuture.create();
+        if (PropertyConfig.isDeterministicId()) {
+            //an existing node with the same id is the duplicate check
+            create(instance, future);
+            return timed(future);
+        }
+
+        Futures.addCallback(getServiceList(name), new FutureCallback<List<ServiceInstance<String>>>() {
+            @Override
+            public void onSuccess(List<ServiceInstance<String>> existed) {
+                if (DiscoveryServiceUtil.contains(existed, instance)) {
+                    future.set(false);
+                    return;
+                }
+                create(instance, future);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                future.setException(t);
+            }
+        });
+
+        return timed(future);
+    }
+
+    /**
+     * 并发查询多个服务名, 任意一个失败则整体失败
+     *
+     * @param serviceNames
+     * @return
+     */
+    public ListenableFuture<List<ServiceInstance<String>>> getServices(Collection<String> serviceNames) {
+        List<ListenableFuture<ServiceInstance<String>>> futures = Lists.newArrayListWithCapacity(serviceNames.size());
+        for (String serviceName : serviceNames) {
+            futures.add(getService(serviceName));
+        }
+        return Futures.allAsList(futures);
+    }
+
+    private void create(final ServiceInstance<String> instance, final SettableFuture<Boolean> future) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final SessionPool.Lease lease;
+                try {
+                    lease = SessionPool.getInstance().acquire(PropertyConfig.getZookeeperAddress(), serviceUtil.getBasePath());
+                } catch (Exception e) {
+                    future.setException(e);
+                    return;
+                }
+
+                try {
+                    lease.client().create().creatingParentsIfNeeded().withMode(DiscoveryServiceUtil.modeOf(instance)).inBackground(new BackgroundCallback() {
+                        @Override
+                        public void processResult(CuratorFramework client, CuratorEvent event) throws Exception {
+                            try {
+                                if (event.getResultCode() == KeeperException.Code.OK.intValue()) {
+                                    serviceUtil.holdRegistration(instance);
+                                    serviceUtil.indexed(instance, true);
+                                    future.set(true);
+                                } else if (event.getResultCode() == KeeperException.Code.NODEEXISTS.intValue()) {
+                                    future.set(false);
+                                } else {
+                                    future.setException(KeeperException.create(KeeperException.Code.get(event.getResultCode()), event.getPath()));
+                                }
+                            } finally {
+                                lease.close();
+                            }
+                        }
+                    }, executor).forPath(serviceUtil.pathOf(instance), serviceUtil.getSerializer().serialize(instance));
+                } catch (Exception e) {
+                    lease.close();
+                    future.setException(e);
+                }
+            }
+        });
+    }
+
+    private ListenableFuture<ServiceInstance<String>> getData(CuratorFramework client, final String path) throws Exception {
+        final SettableFuture<ServiceInstance<String>> future = SettableFuture.create();
+        client.getData().inBackground(new BackgroundCallback() {
+            @Override
+            public void processResult(CuratorFramework client, CuratorEvent event) throws Exception {
+                if (event.getResultCode() == KeeperException.Code.OK.intValue()) {
+                    try {
+                        future.set(serializer.deserialize(event.getData()));
+                    } catch (Exception e) {
+                        future.setException(e);
+                    }
+                } else {
+                    future.setException(KeeperException.create(KeeperException.Code.get(event.getResultCode()), path));
+                }
+            }
+        }, executor).forPath(path);
+        return future;
+    }
+
+    private <V> ListenableFuture<V> timed(final ListenableFuture<V> source) {
+        final SettableFuture<V> future = SettableFuture.create();
+        Futures.addCallback(source, new FutureCallback<V>() {
+            @Override
+            public void onSuccess(V result) {
+                future.set(result);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                future.setException(t);
+            }
+        });
+
+        final ScheduledFuture<?> timeout = timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (future.setException(new TimeoutException("zk operation timeout after " + timeoutMs + "ms."))) {
+                    source.cancel(false);
+                }
+            }
+        }, timeoutMs, TimeUnit.MILLISECONDS);
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                timeout.cancel(false);
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        return future;
+    }
+}
@@ -0,0 +1,164 @@
+package com.sohu.smc.common.zk;
+
+import com.netflix.curator.x.discovery.ServiceInstance;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 一次请求的候选实例序列: 第一个是选择策略选中的实例, 之后是其余实例的随机排列, 被摘除的实例排在最后.
+ * 服务当前优先本 zone 时(见 ServiceHolder), 本 zone 的实例排在其他 zone 之前.
+ * <p/>
+ * 随机排列用 起点 + k * 步长 (步长与实例数互质) 取模遍历快照数组, 不拷贝也不分配内存.
+ * DiscoveryClientUtil.candidates 每次返回新对象; pick 内部按线程复用, 用完即 clear.
+ * 只有第一个实例计入策略的未完成请求数, 需要 release.
+ * User: shijinkui
+ */
+public final class CandidateIterator implements Iterator<ServiceInstance<String>> {
+
+    private ServiceSnapshot snapshot = ServiceSnapshot.EMPTY;
+    private OutlierDetector detector;
+    private ServiceInstance<String> primary;
+    private boolean primaryPending;
+
+    private int size;
+    private int start;
+    private int stride;
+    private int visited;
+
+    /**
+     * 第一轮只返回 zone 内未被摘除的实例(没有优先 zone 时跳过), 第二轮返回其他未被摘除的实例, 第三轮只返回被摘除的实例
+     */
+    private static final int PASS_ZONE = 0;
+    private static final int PASS_OTHERS = 1;
+    private static final int PASS_EJECTED = 2;
+
+    private String zone;
+    private int pass;
+    private boolean hasEjected;
+    private ServiceInstance<String> next;
+
+    CandidateIterator() {
+    }
+
+    /**
+     * @param zone 优先的 zone, 可以为null
+     */
+    void reset(ServiceSnapshot snapshot, OutlierDetector detector, ServiceInstance<String> primary, String zone) {
+        this.snapshot = snapshot;
+        this.zone = zone;
+        this.detector = detector;
+        this.primary = primary;
+        this.primaryPending = primary != null;
+        this.size = snapshot.size();
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        this.start = size == 0 ? 0 : random.nextInt(size);
+        this.stride = strideOf(size, random);
+        this.visited = 0;
+        this.pass = zone == null ? PASS_OTHERS : PASS_ZONE;
+        this.hasEjected = false;
+        advance();
+    }
+
+    /**
+     * 丢弃剩余的候选实例, 不再引用快照
+     */
+    void clear() {
+        next = null;
+        primaryPending = false;
+        snapshot = ServiceSnapshot.EMPTY;
+        detector = null;
+        zone = null;
+    }
+
+    /**
+     * 第一个候选实例, 没有实例时为null
+     */
+    public ServiceInstance<String> primary() {
+        return primary;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return next != null;
+    }
+
+    @Override
+    public ServiceInstance<String> next() {
+        ServiceInstance<String> ret = next;
+        if (ret == null) {
+            throw new NoSuchElementException();
+        }
+        advance();
+        return ret;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    private void advance() {
+        if (primaryPending) {
+            primaryPending = false;
+            next = primary;
+            return;
+        }
+
+        while (true) {
+            if (visited >= size) {
+                if (pass == PASS_ZONE || (pass == PASS_OTHERS && hasEjected)) {
+                    pass++;
+                    visited = 0;
+                    continue;
+                }
+                clear();
+                return;
+            }
+
+            int index = (int) ((start + (long) visited * stride) % size);
+            ServiceInstance<String> candidate = snapshot.get(index);
+            visited++;
+            if (primary != null && primary.getId().equals(candidate.getId())) {
+                continue;
+            }
+
+            boolean ejected = detector != null && detector.isEjected(candidate);
+            if (pass == PASS_EJECTED) {
+                if (!ejected) {
+                    continue;
+                }
+            } else if (ejected) {
+                hasEjected = true;
+                continue;
+            } else if ((pass == PASS_ZONE) != (zone != null && zone.equals(snapshot.zoneOf(index)))) {
+                continue;
+            }
+            next = candidate;
+            return;
+        }
+    }
+
+    private static int strideOf(int size, ThreadLocalRandom random) {
+        if (size <= 2) {
+            return 1;
+        }
+        while (true) {
+            int stride = 1 + random.nextInt(size - 1);
+            if (gcd(stride, size) == 1) {
+                return stride;
+            }
+        }
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+}
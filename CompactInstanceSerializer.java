@@ -0,0 +1,187 @@
+package com.sohu.smc.common.zk;
+
+import com.google.common.base.Charsets;
+import com.netflix.curator.x.discovery.ServiceInstance;
+import com.netflix.curator.x.discovery.ServiceInstanceBuilder;
+import com.netflix.curator.x.discovery.ServiceType;
+import com.netflix.curator.x.discovery.UriSpec;
+import com.netflix.curator.x.discovery.details.InstanceSerializer;
+import com.netflix.curator.x.discovery.details.JsonInstanceSerializer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * 紧凑的二进制实例序列化, 读取时兼容老的 JSON 节点, 新老客户端可以混跑.
+ * <p/>
+ * 二进制节点以 MAGIC 开头(JSON 总是以 '{' 开头, 不会冲突):
+ * <pre>
+ * MAGIC(1) version(1) flags(1) name id [address] [port(4)] [sslPort(4)] [payload] registrationTimeUTC(8) serviceType(1) [uriSpec]
+ * 字符串 := length(varint) utf8-bytes
+ * uriSpec := parts(varint) { variable(1) value }
+ * </pre>
+ * uriSpec 放在最后, 不认识 HAS_URI_SPEC 的老版本读取时忽略它. JSON 格式由 JsonInstanceSerializer 读写, 其中包含 uriSpec.
+ * writeBinary 为false时写 JSON, 先把全部读方升级到本类再切换写方即可平滑迁移.
+ * User: shijinkui
+ */
+public class CompactInstanceSerializer implements InstanceSerializer<String> {
+
+    private static final byte MAGIC = (byte) 0xB5;
+    private static final byte VERSION = 1;
+
+    private static final int HAS_ADDRESS = 1;
+    private static final int HAS_PORT = 1 << 1;
+    private static final int HAS_SSL_PORT = 1 << 2;
+    private static final int HAS_PAYLOAD = 1 << 3;
+    private static final int HAS_URI_SPEC = 1 << 4;
+
+    private static final ServiceType[] TYPES = ServiceType.values();
+
+    private final JsonInstanceSerializer<String> json = new JsonInstanceSerializer<String>(String.class);
+    private final boolean writeBinary;
+
+    public CompactInstanceSerializer(boolean writeBinary) {
+        this.writeBinary = writeBinary;
+    }
+
+    /**
+     * 按 zoo.properties 中的 serializer 配置决定写格式
+     */
+    public static CompactInstanceSerializer fromConfig() {
+        return new CompactInstanceSerializer(PropertyConfig.isBinarySerializer());
+    }
+
+    @Override
+    public byte[] serialize(ServiceInstance<String> instance) throws Exception {
+        if (!writeBinary) {
+            return json.serialize(instance);
+        }
+
+        int flags = 0;
+        if (instance.getAddress() != null) {
+            flags |= HAS_ADDRESS;
+        }
+        if (instance.getPort() != null) {
+            flags |= HAS_PORT;
+        }
+        if (instance.getSslPort() != null) {
+            flags |= HAS_SSL_PORT;
+        }
+        if (instance.getPayload() != null) {
+            flags |= HAS_PAYLOAD;
+        }
+        if (instance.getUriSpec() != null) {
+            flags |= HAS_URI_SPEC;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(MAGIC);
+        out.writeByte(VERSION);
+        out.writeByte(flags);
+        writeString(out, instance.getName());
+        writeString(out, instance.getId());
+        if ((flags & HAS_ADDRESS) != 0) {
+            writeString(out, instance.getAddress());
+        }
+        if ((flags & HAS_PORT) != 0) {
+            out.writeInt(instance.getPort());
+        }
+        if ((flags & HAS_SSL_PORT) != 0) {
+            out.writeInt(instance.getSslPort());
+        }
+        if ((flags & HAS_PAYLOAD) != 0) {
+            writeString(out, instance.getPayload());
+        }
+        out.writeLong(instance.getRegistrationTimeUTC());
+        out.writeByte(instance.getServiceType().ordinal());
+        if ((flags & HAS_URI_SPEC) != 0) {
+            List<UriSpec.Part> parts = instance.getUriSpec().getParts();
+            writeVarint(out, parts.size());
+            for (UriSpec.Part part : parts) {
+                out.writeBoolean(part.isVariable());
+                writeString(out, part.getValue());
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public ServiceInstance<String> deserialize(byte[] bytes) throws Exception {
+        if (bytes.length == 0 || bytes[0] != MAGIC) {
+            return json.deserialize(bytes);
+        }
+
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        in.get();
+        byte version = in.get();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("unsupported instance format version: " + version);
+        }
+
+        int flags = in.get();
+        String name = readString(in);
+        String id = readString(in);
+        String address = (flags & HAS_ADDRESS) != 0 ? readString(in) : null;
+        Integer port = (flags & HAS_PORT) != 0 ? in.getInt() : null;
+        Integer sslPort = (flags & HAS_SSL_PORT) != 0 ? in.getInt() : null;
+        String payload = (flags & HAS_PAYLOAD) != 0 ? readString(in) : null;
+        long registrationTimeUTC = in.getLong();
+        ServiceType serviceType = TYPES[in.get()];
+
+        //the builder defaults address, id and registration time, every field is set explicitly
+        ServiceInstanceBuilder<String> builder = ServiceInstance.<String>builder().name(name).id(id).address(address).payload(payload)
+                .registrationTimeUTC(registrationTimeUTC).serviceType(serviceType);
+        if (port != null) {
+            builder.port(port);
+        }
+        if (sslPort != null) {
+            builder.sslPort(sslPort);
+        }
+        if ((flags & HAS_URI_SPEC) != 0) {
+            UriSpec uriSpec = new UriSpec();
+            int parts = readVarint(in);
+            for (int i = 0; i < parts; i++) {
+                boolean variable = in.get() != 0;
+                uriSpec.add(new UriSpec.Part(readString(in), variable));
+            }
+            builder.uriSpec(uriSpec);
+        }
+        return builder.build();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws Exception {
+        byte[] utf8 = value.getBytes(Charsets.UTF_8);
+        writeVarint(out, utf8.length);
+        out.write(utf8);
+    }
+
+    private static void writeVarint(DataOutputStream out, int value) throws Exception {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarint(ByteBuffer in) {
+        int value = 0, shift = 0;
+        byte b;
+        do {
+            b = in.get();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = readVarint(in);
+        String value = new String(in.array(), in.position(), length, Charsets.UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+}
@@ -0,0 +1,275 @@
+package com.sohu.smc.common.zk;
+
+import com.sohu.smc.common.zk.flow.Publisher;
+import com.sohu.smc.common.zk.flow.Subscriber;
+import com.sohu.smc.common.zk.flow.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 单个服务的实例变化发布者, 由 ServiceHolder 在快照更新时调用 publish.
+ * <p/>
+ * 每个订阅有自己的队列, 最多 deltaBufferSize 个 delta; 队列满时新 delta 合并进队尾, 内存不随变化次数增长.
+ * onNext 只在 request 的额度内回调, 在共享的分发线程池中执行, 同一订阅的回调不会并发.
+ * 没有订阅者时 publish 只比较快照内容决定是否加版本号, 不计算 diff.
+ * User: shijinkui
+ */
+public class DeltaPublisher implements Publisher<InstanceDelta> {
+
+    private static final Logger log = LoggerFactory.getLogger(DeltaPublisher.class.getName());
+
+    private static final ExecutorService dispatcher = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger seq = new AtomicInteger(0);
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "zk-delta-dispatch-" + seq.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private final String name;
+    private final int bufferSize;
+    private final List<DeltaSubscription> subscriptions = new CopyOnWriteArrayList<DeltaSubscription>();
+    private volatile Runnable idleListener;
+
+    /**
+     * 由 this 保护
+     */
+    private ServiceSnapshot current = ServiceSnapshot.EMPTY;
+    private long version = 0;
+    private boolean closed = false;
+
+    public DeltaPublisher(String name) {
+        this(name, PropertyConfig.getDeltaBufferSize());
+    }
+
+    public DeltaPublisher(String name, int bufferSize) {
+        this.name = name;
+        this.bufferSize = Math.max(bufferSize, 1);
+    }
+
+    public boolean hasSubscribers() {
+        return !subscriptions.isEmpty();
+    }
+
+    /**
+     * 当前订阅数
+     */
+    public int subscriberCount() {
+        return subscriptions.size();
+    }
+
+    /**
+     * 最后一个订阅取消时回调, 在取消订阅的线程中执行
+     *
+     * @param listener
+     */
+    void setIdleListener(Runnable listener) {
+        this.idleListener = listener;
+    }
+
+    /**
+     * 当前版本号, 每次实例内容变化加1
+     */
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * 订阅后第一个 delta 是当前全部实例
+     */
+    @Override
+    public synchronized void subscribe(Subscriber<? super InstanceDelta> subscriber) {
+        DeltaSubscription subscription = new DeltaSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+        if (subscription.cancelled) {
+            //cancelled inside onSubscribe, never registered
+            Runnable listener = idleListener;
+            if (listener != null && subscriptions.isEmpty()) {
+                listener.run();
+            }
+            return;
+        }
+        if (closed) {
+            subscription.complete();
+            return;
+        }
+        subscriptions.add(subscription);
+        subscription.offer(InstanceDelta.diff(name, 0, version, ServiceSnapshot.EMPTY, current));
+    }
+
+    /**
+     * 快照更新
+     *
+     * @param snapshot
+     */
+    synchronized void publish(ServiceSnapshot snapshot) {
+        if (snapshot == current) {
+            return;
+        }
+        ServiceSnapshot before = current;
+        current = snapshot;
+        if (subscriptions.isEmpty()) {
+            if (!InstanceDelta.unchanged(before, snapshot)) {
+                version++;
+            }
+            return;
+        }
+
+        InstanceDelta delta = InstanceDelta.diff(name, version, version + 1, before, snapshot);
+        if (delta.isEmpty()) {
+            return;
+        }
+        version++;
+        for (DeltaSubscription subscription : subscriptions) {
+            subscription.offer(delta);
+        }
+    }
+
+    /**
+     * 服务缓存关闭, 通知全部订阅者 onComplete
+     */
+    synchronized void close() {
+        closed = true;
+        for (DeltaSubscription subscription : subscriptions) {
+            subscription.complete();
+        }
+        subscriptions.clear();
+    }
+
+    private final class DeltaSubscription implements Subscription, Runnable {
+        private final Subscriber<? super InstanceDelta> subscriber;
+        private final AtomicLong requested = new AtomicLong(0);
+        private final AtomicInteger wip = new AtomicInteger(0);
+
+        /**
+         * 由 queue 自身保护
+         */
+        private final Deque<InstanceDelta> queue = new ArrayDeque<InstanceDelta>();
+        private volatile boolean cancelled = false;
+        private volatile boolean completed = false;
+        private volatile Throwable error;
+
+        private DeltaSubscription(Subscriber<? super InstanceDelta> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                error = new IllegalArgumentException("request must be positive: " + n);
+                schedule();
+                return;
+            }
+            while (true) {
+                long current = requested.get();
+                long next = current + n < 0 ? Long.MAX_VALUE : current + n;
+                if (requested.compareAndSet(current, next)) {
+                    break;
+                }
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            boolean removed = subscriptions.remove(this);
+            synchronized (queue) {
+                queue.clear();
+            }
+            Runnable listener = idleListener;
+            if (removed && listener != null && subscriptions.isEmpty()) {
+                listener.run();
+            }
+        }
+
+        private void offer(InstanceDelta delta) {
+            synchronized (queue) {
+                if (queue.size() >= bufferSize) {
+                    queue.offerLast(queue.pollLast().merge(delta));
+                } else {
+                    queue.offerLast(delta);
+                }
+            }
+            schedule();
+        }
+
+        private void complete() {
+            completed = true;
+            schedule();
+        }
+
+        private void schedule() {
+            if (wip.getAndIncrement() == 0) {
+                dispatcher.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            while (true) {
+                drain();
+                missed = wip.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+
+        private void drain() {
+            while (!cancelled) {
+                if (error != null) {
+                    cancel();
+                    subscriber.onError(error);
+                    return;
+                }
+
+                InstanceDelta delta = null;
+                if (requested.get() > 0) {
+                    synchronized (queue) {
+                        delta = queue.pollFirst();
+                    }
+                }
+                if (delta == null) {
+                    if (completed && isDrained()) {
+                        cancelled = true;
+                        subscriber.onComplete();
+                    }
+                    return;
+                }
+
+                if (requested.get() != Long.MAX_VALUE) {
+                    requested.decrementAndGet();
+                }
+                try {
+                    subscriber.onNext(delta);
+                } catch (Throwable t) {
+                    log.error("delta subscriber of service[" + name + "] failed, cancel it.", t);
+                    cancel();
+                    subscriber.onError(t);
+                    return;
+                }
+            }
+        }
+
+        private boolean isDrained() {
+            synchronized (queue) {
+                return queue.isEmpty();
+            }
+        }
+    }
+}
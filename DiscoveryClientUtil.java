@@ -1,8 +1,17 @@
 package com.sohu.smc.common.zk;
 
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.SetMultimap;
 import com.google.common.io.Closeables;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import com.netflix.curator.framework.CuratorFramework;
 import com.netflix.curator.framework.CuratorFrameworkFactory;
 import com.netflix.curator.framework.state.ConnectionState;
@@ -12,21 +21,33 @@ import com.netflix.curator.x.discovery.ServiceCache;
 import com.netflix.curator.x.discovery.ServiceDiscovery;
 import com.netflix.curator.x.discovery.ServiceDiscoveryBuilder;
 import com.netflix.curator.x.discovery.ServiceInstance;
-import com.netflix.curator.x.discovery.details.JsonInstanceSerializer;
 import com.netflix.curator.x.discovery.details.ServiceCacheListener;
+import com.sohu.smc.common.zk.flow.Subscriber;
 import com.sohu.smc.common.zk.listeners.ConnectionWatcher;
 import com.sohu.smc.common.zk.listeners.DataWatcher;
 import com.sohu.smc.common.zk.listeners.ServiceCacheListenerImpl;
+import com.sohu.smc.common.zk.metrics.DiscoveryMetrics;
+import com.sohu.smc.common.zk.metrics.MetricsExporter;
+import com.sohu.smc.common.zk.strategy.StrategyType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.Closeable;
-import java.io.IOException;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Random;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * 客户端获取服务, 服务实体的格式：
@@ -51,53 +72,453 @@ import java.util.concurrent.CountDownLatch;
 public class DiscoveryClientUtil {
 
     private final Logger log = LoggerFactory.getLogger(DiscoveryClientUtil.class.getName());
-    private ServiceDiscovery<String> serviceDiscovery;
-    private ConcurrentMap<String, ServiceCache<String>> listcache = Maps.newConcurrentMap();
-    private CuratorFramework client = null;
+    /**
+     * base path -> 当前连接上的 ServiceDiscovery, 重连时整体替换
+     */
+    private volatile ConcurrentMap<String, ServiceDiscovery<String>> discoveries = Maps.newConcurrentMap();
+    /**
+     * catalogMode 下 base path -> 当前连接上的服务目录, 重连时整体替换
+     */
+    private volatile ConcurrentMap<String, ServiceCatalog> catalogs = Maps.newConcurrentMap();
+    private final ConcurrentMap<String, DiscoveryNamespace> namespaces = Maps.newConcurrentMap();
+    private final ConcurrentMap<String, SnapshotStore> snapshotStores = Maps.newConcurrentMap();
+    /**
+     * 服务缓存; 查询只读这个 map, 空闲过期和容量上限由 SweepTask 定期执行, 见 sweep
+     */
+    private final ConcurrentMap<ServiceKey, ServiceHolder> listcache = Maps.newConcurrentMap();
+    /**
+     * 正在建立的服务缓存, 同一服务名并发调用只有一个线程建立
+     */
+    private final ConcurrentMap<ServiceKey, SettableFuture<ServiceHolder>> loading = Maps.newConcurrentMap();
+    /**
+     * 有订阅者的服务, 不受 listcache 的容量上限和空闲过期影响, 最后一个订阅取消后解除; 修改和关闭判断由 pinned 自身保护
+     */
+    private final ConcurrentMap<ServiceKey, ServiceHolder> pinned = Maps.newConcurrentMap();
+    private final ConcurrentMap<String, StrategyType> strategies = Maps.newConcurrentMap();
+    private volatile StrategyType defaultStrategy = StrategyType.RANDOM;
+    private final SettableFuture<Map<String, Long>> ready = SettableFuture.create();
+    private final AtomicBoolean prefetched = new AtomicBoolean(false);
+    private volatile CuratorFramework client = null;
+    /**
+     * 每次建立新连接加一, 用于发现在重连期间建立、落在旧连接上的服务缓存
+     */
+    private volatile long generation = 0;
     private final String path;
+    /**
+     * 默认 base path 的视图, 用于复用服务名对应的 key
+     */
+    private final DiscoveryNamespace home;
+    private final String connectString;
+    private final String ensemble;
+    private final boolean catalogMode;
+    private final DiscoveryMetrics metrics = DiscoveryMetrics.getInstance();
+    private final DiscoveryMetrics.GaugeSource gauges;
+
+    private static final long RECONNECT_MIN_BACKOFF_MS = 500;
+    private static final long RECONNECT_MAX_BACKOFF_MS = 30000;
+    private static final long SWEEP_MIN_INTERVAL_MS = 1000;
+    private static final long SWEEP_MAX_INTERVAL_MS = 60000;
+
+    private final AtomicBoolean reconnecting = new AtomicBoolean(false);
+    private final ScheduledExecutorService reconnector = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "zk-reconnect");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /**
+     * pick 内部复用的迭代器, 不会交给调用方
+     */
+    private static final ThreadLocal<CandidateIterator> candidates = new ThreadLocal<CandidateIterator>() {
+        @Override
+        protected CandidateIterator initialValue() {
+            return new CandidateIterator();
+        }
+    };
 
     private static DiscoveryClientUtil factory = null;
     private static final Object lock = new Object();
+    /**
+     * getInstance 已经警告过的 base path, 每个只警告一次
+     */
+    private static final Set<String> warnedPaths = Collections.newSetFromMap(Maps.<String, Boolean>newConcurrentMap());
 
     public DiscoveryClientUtil(String path) {
+        this(path, null, PropertyConfig.getZookeeperAddress());
+    }
+
+    /**
+     * 连接指定的 zk 集群, 多集群时见 FederatedDiscoveryClient
+     *
+     * @param path
+     * @param ensemble      集群名, 用于区分本地快照和监控项, 可以为null
+     * @param connectString
+     */
+    public DiscoveryClientUtil(String path, String ensemble, String connectString) {
+        this(path, ensemble, connectString, PropertyConfig.isCatalogMode());
+    }
+
+    /**
+     * @param path
+     * @param ensemble
+     * @param connectString
+     * @param catalogMode   每个 base path 一个 ServiceCatalog, 不再每个服务名一个 ServiceCache
+     */
+    public DiscoveryClientUtil(String path, String ensemble, String connectString, boolean catalogMode) {
         this.path = path;
+        this.ensemble = ensemble;
+        this.connectString = connectString;
+        this.catalogMode = catalogMode;
+        this.home = namespace(path);
+        final String prefix = ensemble == null ? "zk-" : "zk-" + ensemble + "-";
+        this.gauges = new DiscoveryMetrics.GaugeSource() {
+            @Override
+            public void collect(MetricsExporter exporter) {
+                Map<ServiceKey, ServiceHolder> all = allHolders();
+                exporter.gauge(prefix + "cached-services", all.size());
+                for (Map.Entry<ServiceKey, ServiceHolder> e : all.entrySet()) {
+                    String name = e.getKey().getBasePath().equals(DiscoveryClientUtil.this.path) ? e.getKey().getName() : e.getKey().toString();
+                    exporter.gauge(prefix + "service-instances-" + name, e.getValue().getSnapshot().size());
+                }
+            }
+        };
+        metrics.addGaugeSource(gauges);
+        long sweepMs = Math.max(Math.min(PropertyConfig.getServiceIdleMs() / 2, SWEEP_MAX_INTERVAL_MS), SWEEP_MIN_INTERVAL_MS);
+        reconnector.scheduleWithFixedDelay(new SweepTask(), sweepMs, sweepMs, TimeUnit.MILLISECONDS);
+        long touchMs = Math.max(PropertyConfig.getSnapshotMaxStaleMs() / 4, SWEEP_MIN_INTERVAL_MS);
+        reconnector.scheduleWithFixedDelay(new TouchTask(), touchMs, touchMs, TimeUnit.MILLISECONDS);
     }
 
+    /**
+     * 全局共享的客户端, 第一次调用的 path 为默认 base path; 其他 base path 用 getNamespace, 共用同一个会话
+     */
     public static DiscoveryClientUtil getInstance(String path) {
-        if (factory != null) {
-            return factory;
+        if (factory == null) {
+            synchronized (lock) {
+                if (factory == null) {
+                    factory = new DiscoveryClientUtil(path);
+                }
+            }
         }
 
-        synchronized (lock) {
-            if (factory == null) {
-                factory = new DiscoveryClientUtil(path);
-            }
+        if (!factory.path.equals(path) && warnedPaths.add(path)) {
+            factory.log.warn("getInstance(" + path + ") returns the client of base path " + factory.path + ", use getNamespace(" + path + ") instead.");
         }
         return factory;
     }
 
-    private synchronized void buildConnection() {
-        try {
-            client = CuratorFrameworkFactory.builder().connectString(PropertyConfig.getZookeeperAddress()).retryPolicy(new RetryNTimes(3, 20)).sessionTimeoutMs(3000).build();
-            client.start();
+    /**
+     * 全局共享客户端上某个 base path 的视图
+     *
+     * @param path
+     * @return
+     */
+    public static DiscoveryNamespace getNamespace(String path) {
+        return getInstance(path).namespace(path);
+    }
 
-            client.getCuratorListenable().addListener(new DataWatcher());
-            client.getConnectionStateListenable().addListener(new ConnectionWatcher(path));
-            serviceDiscovery = ServiceDiscoveryBuilder.builder(String.class).basePath(path).serializer(new JsonInstanceSerializer<String>(String.class)).client(client).build();
-            serviceDiscovery.start();
+    /**
+     * 本客户端会话上某个 base path 的视图, 各 base path 的服务缓存都在同一个缓存结构中, 按 (basePath, serviceName) 区分
+     *
+     * @param basePath
+     * @return
+     */
+    public DiscoveryNamespace namespace(String basePath) {
+        DiscoveryNamespace namespace = namespaces.get(basePath);
+        if (namespace == null) {
+            DiscoveryNamespace created = new DiscoveryNamespace(this, basePath);
+            namespace = namespaces.putIfAbsent(basePath, created);
+            if (namespace == null) {
+                namespace = created;
+            }
+        }
+        return namespace;
+    }
 
-            log.info("build a new zk connection:" + client.toString());
+    public String getBasePath() {
+        return path;
+    }
 
-        } catch (IOException e) {
+    /**
+     * 建立新连接并把全部服务缓存重新绑定到新连接上, 成功后关闭旧连接.
+     * 绑定失败的服务保持 detached, 继续用原来的快照服务, 由 attachDetached 重试.
+     *
+     * @return 新连接是否建立成功
+     */
+    private synchronized boolean buildConnection() {
+        long start = System.nanoTime();
+        CuratorFramework newClient = null;
+        ConcurrentMap<String, ServiceDiscovery<String>> newDiscoveries = Maps.newConcurrentMap();
+        try {
+            newClient = CuratorFrameworkFactory.builder().connectString(connectString).retryPolicy(new RetryNTimes(3, 20)).sessionTimeoutMs(3000).build();
+            newClient.start();
+
+            newClient.getCuratorListenable().addListener(new DataWatcher());
+            newClient.getConnectionStateListenable().addListener(new ConnectionWatcher(this));
+            newDiscoveries.put(path, startDiscovery(newClient, path));
+            for (String basePath : discoveries.keySet()) {
+                if (!newDiscoveries.containsKey(basePath)) {
+                    newDiscoveries.put(basePath, startDiscovery(newClient, basePath));
+                }
+            }
+        } catch (Exception e) {
             log.error("create connection err,", e);
+            for (ServiceDiscovery<String> discovery : newDiscoveries.values()) {
+                Closeables.closeQuietly(discovery);
+            }
+            Closeables.closeQuietly(newClient);
+            return false;
+        }
+
+        CuratorFramework oldClient = client;
+        Map<String, ServiceDiscovery<String>> oldDiscoveries = discoveries;
+        Map<String, ServiceCatalog> oldCatalogs = catalogs;
+        client = newClient;
+        discoveries = newDiscoveries;
+        catalogs = Maps.newConcurrentMap();
+        generation++;
+        log.info("build a new zk connection:" + newClient.toString());
+
+        for (ServiceHolder holder : allHolders().values()) {
+            if (!bind(holder)) {
+                //the old cache dies with the old connection, keep serving its last snapshot
+                Closeables.closeQuietly(holder.detach());
+            }
+        }
+
+        for (ServiceCatalog catalog : oldCatalogs.values()) {
+            Closeables.closeQuietly(catalog);
+        }
+        for (ServiceDiscovery<String> discovery : oldDiscoveries.values()) {
+            Closeables.closeQuietly(discovery);
+        }
+        Closeables.closeQuietly(oldClient);
+        metrics.reconnect().recordSince(start);
+        return true;
+    }
+
+    private ServiceDiscovery<String> startDiscovery(CuratorFramework current, String basePath) throws Exception {
+        ServiceDiscovery<String> discovery = ServiceDiscoveryBuilder.builder(String.class).basePath(basePath).serializer(CompactInstanceSerializer.fromConfig()).client(current).build();
+        try {
+            discovery.start();
         } catch (Exception e) {
-            e.printStackTrace();
+            Closeables.closeQuietly(discovery);
+            throw e;
+        }
+        return discovery;
+    }
+
+    /**
+     * 当前连接上某个 base path 的 ServiceDiscovery, 第一次使用时建立
+     */
+    ServiceDiscovery<String> discoveryOf(String basePath) throws Exception {
+        ServiceDiscovery<String> discovery = discoveries.get(basePath);
+        if (discovery != null) {
+            return discovery;
+        }
+
+        synchronized (this) {
+            discovery = discoveries.get(basePath);
+            if (discovery == null) {
+                if (client == null) {
+                    throw new IllegalStateException("zk connection has not been built.");
+                }
+                discovery = startDiscovery(client, basePath);
+                discoveries.put(basePath, discovery);
+            }
+            return discovery;
+        }
+    }
+
+    /**
+     * 当前连接上某个 base path 的服务目录, 第一次使用时建立并完成全量读取
+     */
+    ServiceCatalog catalogOf(final String basePath) throws Exception {
+        ServiceCatalog catalog = catalogs.get(basePath);
+        if (catalog != null) {
+            return catalog;
+        }
+
+        synchronized (this) {
+            catalog = catalogs.get(basePath);
+            if (catalog == null) {
+                if (client == null) {
+                    throw new IllegalStateException("zk connection has not been built.");
+                }
+                catalog = ServiceCatalog.open(client, basePath, new ServiceCatalog.Listener() {
+                    @Override
+                    public void serviceChanged(String name, ServiceSnapshot snapshot) {
+                        ServiceHolder holder = cached(namespace(basePath).keyOf(name));
+                        if (holder != null) {
+                            holder.refresh();
+                        }
+                    }
+                });
+                catalogs.put(basePath, catalog);
+            }
+            return catalog;
         }
     }
 
-    public synchronized void rebuildConnection(String path) {
-        listcache.clear();
-        buildConnection();
+    /**
+     * 首次调用同步建立连接; 之后的调用在后台重连, 调用线程不等待, 重连期间继续用已有快照服务
+     *
+     * @param path
+     */
+    public void rebuildConnection(String path) {
+        if (client == null) {
+            synchronized (this) {
+                if (client == null) {
+                    if (!buildConnection()) {
+                        scheduleReconnect();
+                    } else if (!attachDetached()) {
+                        reconnector.schedule(new AttachTask(RECONNECT_MIN_BACKOFF_MS), RECONNECT_MIN_BACKOFF_MS, TimeUnit.MILLISECONDS);
+                    }
+                    return;
+                }
+            }
+        }
+        scheduleReconnect();
+    }
+
+    /**
+     * 连接 LOST 时由 listener 调用, 同一个连接的多次 LOST 事件只触发一次重连
+     *
+     * @param lost 发生 LOST 的连接
+     */
+    public void onConnectionLost(CuratorFramework lost) {
+        if (lost != null && lost != client) {
+            //event from a connection that has already been replaced
+            return;
+        }
+        scheduleReconnect();
+    }
+
+    private void scheduleReconnect() {
+        if (reconnecting.compareAndSet(false, true)) {
+            reconnector.execute(new ReconnectTask(RECONNECT_MIN_BACKOFF_MS));
+        }
+    }
+
+    private class ReconnectTask implements Runnable {
+        private final long backoffMs;
+
+        private ReconnectTask(long backoffMs) {
+            this.backoffMs = backoffMs;
+        }
+
+        @Override
+        public void run() {
+            if (!buildConnection()) {
+                reconnector.schedule(new ReconnectTask(Math.min(backoffMs * 2, RECONNECT_MAX_BACKOFF_MS)), backoffMs, TimeUnit.MILLISECONDS);
+                return;
+            }
+            reconnecting.set(false);
+            if (!attachDetached()) {
+                reconnector.schedule(new AttachTask(backoffMs), backoffMs, TimeUnit.MILLISECONDS);
+            }
+            touchSnapshots();
+        }
+    }
+
+    private class TouchTask implements Runnable {
+        @Override
+        public void run() {
+            if (isConnected()) {
+                touchSnapshots();
+            }
+        }
+    }
+
+    /**
+     * 刷新本地快照中已绑定zk数据的服务的记录时间, 删除已经没有服务缓存的服务的记录
+     */
+    private void touchSnapshots() {
+        if (snapshotStores.isEmpty()) {
+            return;
+        }
+        SetMultimap<String, String> current = HashMultimap.create();
+        SetMultimap<String, String> live = HashMultimap.create();
+        for (ServiceHolder holder : allHolders().values()) {
+            live.put(holder.getBasePath(), holder.getName());
+            if (holder.isAttached()) {
+                current.put(holder.getBasePath(), holder.getName());
+            }
+        }
+        for (Map.Entry<String, SnapshotStore> e : snapshotStores.entrySet()) {
+            try {
+                e.getValue().touch(current.get(e.getKey()), live.get(e.getKey()));
+            } catch (Exception ex) {
+                log.error("touch snapshot err, base path: " + e.getKey(), ex);
+            }
+        }
+    }
+
+    private class AttachTask implements Runnable {
+        private final long backoffMs;
+
+        private AttachTask(long backoffMs) {
+            this.backoffMs = backoffMs;
+        }
+
+        @Override
+        public void run() {
+            if (!attachDetached()) {
+                reconnector.schedule(new AttachTask(Math.min(backoffMs * 2, RECONNECT_MAX_BACKOFF_MS)), backoffMs, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * 为只有本地快照或重连时绑定失败的服务建立 ServiceCache
+     *
+     * @return 是否全部绑定成功
+     */
+    private synchronized boolean attachDetached() {
+        boolean all = true;
+        for (ServiceHolder holder : allHolders().values()) {
+            if (holder.isAttached()) {
+                continue;
+            }
+            if (!bind(holder)) {
+                all = false;
+            }
+        }
+        return all;
+    }
+
+    /**
+     * 在当前连接上为服务建立新的 ServiceCache 并绑定, 成功后关闭被替换的 ServiceCache
+     *
+     * @return 是否绑定成功, 失败时保持原绑定
+     */
+    private boolean bind(ServiceHolder holder) {
+        if (catalogMode) {
+            try {
+                Closeables.closeQuietly(holder.attach(catalogOf(holder.getBasePath())));
+                return true;
+            } catch (Exception e) {
+                log.error("bind service catalog err, service: " + holder.getName(), e);
+                return false;
+            }
+        }
+
+        ServiceCache<String> cache = null;
+        try {
+            cache = discoveryOf(holder.getBasePath()).serviceCacheBuilder().name(holder.getName()).build();
+            cache.addListener(holder);
+            cache.addListener(new ServiceCacheListenerImpl(this));
+            cache.start();
+            Closeables.closeQuietly(holder.attach(cache));
+            return true;
+        } catch (Exception e) {
+            log.error("bind service cache err, service: " + holder.getName(), e);
+            Closeables.closeQuietly(cache);
+        }
+        return false;
     }
 
     /**
@@ -107,23 +528,297 @@ public class DiscoveryClientUtil {
      * @return
      */
     public ServiceInstance<String> getService(final String serviceName) {
-        ServiceInstance<String> serviceInstance = null;
+        return getService(serviceName, null);
+    }
 
+    /**
+     * 客户端使用, key 用于一致性hash策略, 其他策略忽略
+     *
+     * @param serviceName
+     * @param key
+     * @return
+     */
+    public ServiceInstance<String> getService(final String serviceName, final String key) {
+        return getService(home.keyOf(serviceName), key);
+    }
+
+    ServiceInstance<String> getService(final ServiceKey serviceKey, final String key) {
+        long start = metrics.lookupStart();
+        ServiceHolder holder = cached(serviceKey);
+        if (holder == null) {
+            metrics.cacheMiss().incr();
+            holder = loadHolder(serviceKey);
+            if (holder == null) {
+                return null;
+            }
+        } else {
+            metrics.cacheHit().incr();
+        }
+
+        ServiceInstance<String> instance = holder.select(key);
+        metrics.lookupEnd(start);
+        return instance;
+    }
+
+    /**
+     * 一次请求的有序候选实例, 用于失败重试和 hedged 请求, 见 CandidateIterator;
+     * 每次调用返回新的迭代器, 只需要前几个实例时用 pick, 不分配内存
+     *
+     * @param serviceName
+     * @param key         用于一致性hash策略, 可以为null
+     * @return
+     */
+    public CandidateIterator candidates(final String serviceName, final String key) {
+        return candidates(home.keyOf(serviceName), key);
+    }
+
+    CandidateIterator candidates(final ServiceKey serviceKey, final String key) {
+        return candidates(serviceKey, key, new CandidateIterator());
+    }
+
+    private CandidateIterator candidates(final ServiceKey serviceKey, final String key, final CandidateIterator it) {
+        ServiceHolder holder = cached(serviceKey);
+        if (holder == null) {
+            metrics.cacheMiss().incr();
+            holder = loadHolder(serviceKey);
+        } else {
+            metrics.cacheHit().incr();
+        }
+
+        if (holder == null) {
+            it.reset(ServiceSnapshot.EMPTY, null, null, null);
+        } else {
+            it.reset(holder.getSnapshot(), holder.getDetector(), holder.select(key), holder.getPreferredZone());
+        }
+        return it;
+    }
+
+    /**
+     * 选出最多 out.length 个不同的实例, 顺序同 candidates; 用本线程复用的迭代器, out 可以由调用方复用
+     *
+     * @param serviceName
+     * @param key
+     * @param out
+     * @return 实际选出的实例数
+     */
+    public int pick(final String serviceName, final String key, final ServiceInstance<String>[] out) {
+        return pick(home.keyOf(serviceName), key, out);
+    }
+
+    int pick(final ServiceKey serviceKey, final String key, final ServiceInstance<String>[] out) {
+        CandidateIterator it = candidates(serviceKey, key, candidates.get());
         try {
-            if (listcache.containsKey(serviceName)) {
-                serviceInstance = getRandomService(serviceName);
+            int count = 0;
+            while (count < out.length && it.hasNext()) {
+                out[count++] = it.next();
+            }
+            return count;
+        } finally {
+            //do not pin the snapshot in the thread local
+            it.clear();
+        }
+    }
+
+    /**
+     * 请求结束后归还 getService 得到的实例, least-outstanding 和 power-of-two 策略依赖它计数
+     *
+     * @param serviceName
+     * @param instance
+     */
+    public void release(final String serviceName, final ServiceInstance<String> instance) {
+        release(home.keyOf(serviceName), instance);
+    }
+
+    void release(final ServiceKey serviceKey, final ServiceInstance<String> instance) {
+        ServiceHolder holder = cached(serviceKey);
+        if (holder != null && instance != null) {
+            holder.release(instance);
+        }
+    }
+
+    /**
+     * 请求结果反馈, 连续失败或延迟异常的实例会被暂时摘除
+     *
+     * @param serviceName
+     * @param instance
+     * @param success
+     * @param latencyMicros
+     */
+    public void report(final String serviceName, final ServiceInstance<String> instance, final boolean success, final long latencyMicros) {
+        report(home.keyOf(serviceName), instance, success, latencyMicros);
+    }
+
+    void report(final ServiceKey serviceKey, final ServiceInstance<String> instance, final boolean success, final long latencyMicros) {
+        ServiceHolder holder = cached(serviceKey);
+        if (holder != null && instance != null) {
+            holder.report(instance, success, latencyMicros);
+        }
+    }
+
+    /**
+     * 订阅服务的实例变化, 第一个 delta 是当前全部实例, 之后每次变化一个 delta.
+     * 有订阅者的服务不会因为空闲或超过缓存上限被关闭.
+     *
+     * @param serviceName
+     * @param subscriber
+     * @return 服务缓存是否建立成功, 失败时不会回调 subscriber
+     */
+    public boolean subscribe(final String serviceName, final Subscriber<? super InstanceDelta> subscriber) {
+        return subscribe(home.keyOf(serviceName), subscriber);
+    }
+
+    boolean subscribe(final ServiceKey serviceKey, final Subscriber<? super InstanceDelta> subscriber) {
+        while (true) {
+            final ServiceHolder holder = loadHolder(serviceKey);
+            if (holder == null) {
+                return false;
+            }
+            synchronized (pinned) {
+                if (cached(serviceKey) != holder) {
+                    //evicted and closed in between, load again
+                    continue;
+                }
+                if (pinned.put(serviceKey, holder) != holder) {
+                    holder.getPublisher().setIdleListener(new Runnable() {
+                        @Override
+                        public void run() {
+                            unpin(serviceKey, holder);
+                        }
+                    });
+                }
+                holder.getPublisher().subscribe(subscriber);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 最后一个订阅取消后解除固定, 已经不在 listcache 中时关闭
+     */
+    private void unpin(ServiceKey serviceKey, ServiceHolder holder) {
+        synchronized (pinned) {
+            if (holder.getPublisher().hasSubscribers() || !pinned.remove(serviceKey, holder)) {
+                return;
+            }
+            if (listcache.get(serviceKey) == holder) {
+                return;
+            }
+        }
+        holder.close();
+    }
+
+    /**
+     * 服务缓存, 先查 listcache 再查 pinned; 同时记录一次访问, 见 sweep
+     */
+    private ServiceHolder cached(ServiceKey serviceKey) {
+        ServiceHolder holder = listcache.get(serviceKey);
+        if (holder == null) {
+            holder = pinned.get(serviceKey);
+            if (holder == null) {
+                return null;
+            }
+        }
+        holder.touch();
+        return holder;
+    }
+
+    /**
+     * 从 listcache 移除并关闭, 仍有订阅者的服务留在 pinned 中不关闭
+     */
+    private void evict(ServiceKey serviceKey, ServiceHolder holder) {
+        if (!listcache.remove(serviceKey, holder)) {
+            return;
+        }
+        synchronized (pinned) {
+            if (pinned.get(serviceKey) == holder) {
+                //subscribed services live on in pinned until every subscriber cancels
+                return;
+            }
+        }
+        holder.close();
+    }
+
+    /**
+     * 关闭空闲超过 serviceIdleMs 的服务缓存, 之后仍超过 maxCachedServices 时关闭最久没有查询的.
+     * 查询线程只标记访问, 访问时间的精度和淘汰的及时性都是一个清理周期.
+     */
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        long idleMs = PropertyConfig.getServiceIdleMs();
+        List<Map.Entry<ServiceKey, ServiceHolder>> live = Lists.newArrayListWithCapacity(listcache.size());
+        for (Map.Entry<ServiceKey, ServiceHolder> e : listcache.entrySet()) {
+            if (now - e.getValue().sweepAccess(now) > idleMs) {
+                evict(e.getKey(), e.getValue());
             } else {
-                ServiceCache<String> cache = serviceDiscovery.serviceCacheBuilder().name(serviceName).build();
-                cache.start();
-                cache.addListener(new ServiceCacheListenerImpl(path));
-                listcache.put(serviceName, cache);
-                serviceInstance = getRandomService(serviceName);
+                live.add(e);
             }
-        } catch (Exception e) {
-            log.error("", e);
         }
 
-        return serviceInstance;
+        long excess = live.size() - PropertyConfig.getMaxCachedServices();
+        if (excess <= 0) {
+            return;
+        }
+        Collections.sort(live, new Comparator<Map.Entry<ServiceKey, ServiceHolder>>() {
+            @Override
+            public int compare(Map.Entry<ServiceKey, ServiceHolder> a, Map.Entry<ServiceKey, ServiceHolder> b) {
+                return Long.compare(a.getValue().getLastAccess(), b.getValue().getLastAccess());
+            }
+        });
+        for (int i = 0; i < excess; i++) {
+            evict(live.get(i).getKey(), live.get(i).getValue());
+        }
+    }
+
+    private class SweepTask implements Runnable {
+        @Override
+        public void run() {
+            try {
+                sweep();
+            } catch (Exception e) {
+                log.error("sweep service cache err,", e);
+            }
+        }
+    }
+
+    /**
+     * 全部服务缓存, 包括被 listcache 淘汰但仍有订阅者的
+     */
+    private Map<ServiceKey, ServiceHolder> allHolders() {
+        if (pinned.isEmpty()) {
+            return listcache;
+        }
+        Map<ServiceKey, ServiceHolder> all = Maps.newHashMap(pinned);
+        all.putAll(listcache);
+        return all;
+    }
+
+    /**
+     * 指定某个服务的选择策略, 全部 base path 下的同名服务都生效, 已经建立缓存的服务立即生效
+     *
+     * @param serviceName
+     * @param type
+     */
+    public void setStrategy(final String serviceName, final StrategyType type) {
+        strategies.put(serviceName, type);
+        for (ServiceHolder holder : allHolders().values()) {
+            if (holder.getName().equals(serviceName)) {
+                holder.setStrategy(type);
+            }
+        }
+    }
+
+    /**
+     * 没有单独指定策略的服务使用的策略, 默认随机
+     *
+     * @param type
+     */
+    public void setDefaultStrategy(final StrategyType type) {
+        this.defaultStrategy = type;
+    }
+
+    private StrategyType strategyOf(String serviceName) {
+        StrategyType type = strategies.get(serviceName);
+        return type == null ? defaultStrategy : type;
     }
 
     /**
@@ -133,35 +828,377 @@ public class DiscoveryClientUtil {
      * @return
      */
     public List<ServiceInstance<String>> getAllService(final String serviceName) {
+        return getAllService(home.keyOf(serviceName));
+    }
+
+    List<ServiceInstance<String>> getAllService(final ServiceKey serviceKey) {
+        ServiceHolder holder = cached(serviceKey);
+        if (holder == null) {
+            metrics.cacheMiss().incr();
+            holder = loadHolder(serviceKey);
+            if (holder == null) {
+                return null;
+            }
+        } else {
+            metrics.cacheHit().incr();
+        }
+
+        return holder.getSnapshot().asList();
+    }
+
+    /**
+     * 启动预热: 并发建立服务缓存, 返回本次调用每个服务的耗时(ms), 失败的服务耗时为-1.
+     * 第一次调用的结果同时完成 getReadyFuture.
+     *
+     * @param serviceNames
+     * @param executor     执行预热的线程池
+     * @return
+     */
+    public ListenableFuture<Map<String, Long>> prefetch(final Collection<String> serviceNames, final ExecutorService executor) {
+        return prefetch(serviceNames, executor, prefetched.compareAndSet(false, true));
+    }
+
+    private ListenableFuture<Map<String, Long>> prefetch(final Collection<String> serviceNames, final ExecutorService executor, final boolean first) {
+        final SettableFuture<Map<String, Long>> future = SettableFuture.create();
+        ListeningExecutorService pool = MoreExecutors.listeningDecorator(executor);
+        final ConcurrentMap<String, Long> timings = Maps.newConcurrentMap();
+        final long begin = System.nanoTime();
+
+        List<ListenableFuture<?>> futures = Lists.newArrayListWithCapacity(serviceNames.size());
+        for (final String serviceName : serviceNames) {
+            futures.add(pool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    long start = System.nanoTime();
+                    boolean ok = loadHolder(home.keyOf(serviceName)) != null;
+                    timings.put(serviceName, ok ? TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) : -1L);
+                }
+            }));
+        }
+
+        ListenableFuture<List<Object>> all = Futures.successfulAsList(futures);
+        Futures.addCallback(all, new FutureCallback<List<Object>>() {
+            @Override
+            public void onSuccess(List<Object> result) {
+                Map<String, Long> ret = ImmutableMap.copyOf(timings);
+                log.info("prefetch " + ret.size() + " services in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin) + "ms: " + ret);
+                future.set(ret);
+                if (first) {
+                    ready.set(ret);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                future.setException(t);
+                if (first) {
+                    ready.setException(t);
+                }
+            }
+        });
+        return future;
+    }
 
+    /**
+     * 启动预热 base path 下的全部服务
+     *
+     * @param executor
+     * @return
+     */
+    public ListenableFuture<Map<String, Long>> prefetchAll(final ExecutorService executor) {
+        boolean first = prefetched.compareAndSet(false, true);
         try {
-            if (listcache.containsKey(serviceName)) {
-                return listcache.get(serviceName).getInstances();
-            } else {
-                ServiceCache<String> cache = serviceDiscovery.serviceCacheBuilder().name(serviceName).build();
-                cache.start();
-                cache.addListener(new ServiceCacheListenerImpl(path));
-                listcache.put(serviceName, cache);
-                return cache.getInstances();
+            return prefetch(getServiceNames(path), executor, first);
+        } catch (Exception e) {
+            log.error("query service names err,", e);
+            if (first) {
+                ready.setException(e);
+            }
+            return Futures.immediateFailedFuture(e);
+        }
+    }
+
+    /**
+     * 第一次 prefetch/prefetchAll 完成的 future, 没有调用过时不会完成
+     */
+    public ListenableFuture<Map<String, Long>> getReadyFuture() {
+        return ready;
+    }
+
+    public boolean isReady() {
+        return ready.isDone();
+    }
+
+    public String getEnsemble() {
+        return ensemble;
+    }
+
+    /**
+     * 关闭全部服务缓存和连接, 不再重连; 之后不能再使用
+     */
+    public synchronized void close() {
+        metrics.removeGaugeSource(gauges);
+        reconnector.shutdownNow();
+        if (isConnected()) {
+            touchSnapshots();
+        }
+        for (Map.Entry<ServiceKey, ServiceHolder> e : listcache.entrySet()) {
+            evict(e.getKey(), e.getValue());
+        }
+        synchronized (pinned) {
+            for (ServiceHolder holder : pinned.values()) {
+                holder.close();
+            }
+            pinned.clear();
+        }
+        for (ServiceCatalog catalog : catalogs.values()) {
+            Closeables.closeQuietly(catalog);
+        }
+        for (ServiceDiscovery<String> discovery : discoveries.values()) {
+            Closeables.closeQuietly(discovery);
+        }
+        Closeables.closeQuietly(client);
+        client = null;
+        for (SnapshotStore store : snapshotStores.values()) {
+            store.close();
+        }
+    }
+
+    /**
+     * 当前连接是否可用, 不可用时查询返回最后一次的快照
+     */
+    public boolean isConnected() {
+        CuratorFramework current = client;
+        return current != null && !reconnecting.get() && current.getZookeeperClient().isConnected();
+    }
+
+    /**
+     * 服务是否已经建立了本地缓存, 已缓存的查询不会访问zk
+     */
+    boolean isCached(final String serviceName) {
+        return cached(home.keyOf(serviceName)) != null;
+    }
+
+    boolean isCached(final ServiceKey serviceKey) {
+        return cached(serviceKey) != null;
+    }
+
+    /**
+     * 已缓存服务中没有被摘除的实例数, 没有缓存时为0
+     */
+    int healthyCount(final String serviceName) {
+        ServiceHolder holder = cached(home.keyOf(serviceName));
+        if (holder == null) {
+            return 0;
+        }
+        return Math.max(holder.getSnapshot().size() - holder.getDetector().ejectedCount(), 0);
+    }
+
+    /**
+     * 已缓存服务的实例数, 没有缓存时为0
+     */
+    int getSnapshotSize(final String serviceName) {
+        ServiceHolder holder = cached(home.keyOf(serviceName));
+        return holder == null ? 0 : holder.getSnapshot().size();
+    }
+
+    /**
+     * 已缓存服务的实例, 没有缓存时返回null, 不建立缓存; 快照不变时返回同一个对象
+     */
+    List<ServiceInstance<String>> getCachedService(final String serviceName) {
+        ServiceHolder holder = cached(home.keyOf(serviceName));
+        return holder == null ? null : holder.getSnapshot().asList();
+    }
+
+    /**
+     * 建立服务缓存但不选择实例, 不影响选择策略的计数
+     *
+     * @return 缓存是否可用
+     */
+    boolean warm(final String serviceName) {
+        return loadHolder(home.keyOf(serviceName)) != null;
+    }
+
+    String getConnectString() {
+        return connectString;
+    }
+
+    /**
+     * 当前连接, 还没有建立或已经关闭时为null; 重连后旧连接会被关闭, 不要长期持有
+     */
+    CuratorFramework currentClient() {
+        return client;
+    }
+
+    /**
+     * 取服务缓存, 不存在时建立; 同一服务名并发调用只有一个线程建立缓存, 其余线程等待它的结果
+     */
+    private ServiceHolder loadHolder(final ServiceKey serviceKey) {
+        long loadedIn = generation;
+        ServiceHolder holder = listcache.get(serviceKey);
+        if (holder == null) {
+            holder = load(serviceKey);
+            if (holder == null) {
+                return null;
             }
+        }
+        holder.touch();
+        if (generation != loadedIn) {
+            rebind(serviceKey, holder);
+        }
+        return holder;
+    }
+
+    private ServiceHolder load(final ServiceKey serviceKey) {
+        SettableFuture<ServiceHolder> future = SettableFuture.create();
+        SettableFuture<ServiceHolder> running = loading.putIfAbsent(serviceKey, future);
+        if (running != null) {
+            try {
+                return running.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                log.error("", e.getCause());
+            }
+            return null;
+        }
+
+        try {
+            ServiceHolder holder = listcache.get(serviceKey);
+            if (holder == null) {
+                //a subscribed service evicted from the cache comes back as the same holder
+                ServiceHolder subscribed = pinned.get(serviceKey);
+                holder = subscribed != null ? subscribed : createHolder(serviceKey);
+                ServiceHolder seeded = listcache.putIfAbsent(serviceKey, holder);
+                if (seeded != null) {
+                    //loadSnapshot got there first
+                    if (holder != subscribed) {
+                        holder.close();
+                    }
+                    holder = seeded;
+                }
+            }
+            future.set(holder);
+            return holder;
         } catch (Exception e) {
+            future.setException(e);
             log.error("", e);
+            return null;
+        } finally {
+            loading.remove(serviceKey, future);
+        }
+    }
+
+    /**
+     * 重连发生在建立缓存期间时, 缓存可能建立在已关闭的旧连接上, 而重连时它还不在 listcache 中没有被重新绑定;
+     * 在当前连接上重新绑定一次, 失败时保持 detached 由 AttachTask 重试
+     */
+    private synchronized void rebind(ServiceKey serviceKey, ServiceHolder holder) {
+        if (client == null || cached(serviceKey) != holder) {
+            return;
+        }
+        if (!bind(holder)) {
+            Closeables.closeQuietly(holder.detach());
+            reconnector.schedule(new AttachTask(RECONNECT_MIN_BACKOFF_MS), RECONNECT_MIN_BACKOFF_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 建立服务缓存; zk不可用时如果有未过期的本地快照, 先用快照服务
+     */
+    private ServiceHolder createHolder(ServiceKey serviceKey) throws Exception {
+        String serviceName = serviceKey.getName();
+        ServiceHolder holder = new ServiceHolder(serviceKey.getBasePath(), serviceName, strategyOf(serviceName), storeOf(serviceKey.getBasePath()));
+        ServiceCache<String> cache = null;
+        try {
+            if (catalogMode) {
+                holder.attach(catalogOf(serviceKey.getBasePath()));
+                return holder;
+            }
+            cache = discoveryOf(serviceKey.getBasePath()).serviceCacheBuilder().name(serviceName).build();
+            cache.addListener(holder);
+            cache.addListener(new ServiceCacheListenerImpl(this));
+            cache.start();
+            holder.attach(cache);
+            return holder;
+        } catch (Exception e) {
+            Closeables.closeQuietly(cache);
+            if (holder.seed()) {
+                log.error("build service cache err, serve from local snapshot, service: " + serviceKey, e);
+                return holder;
+            }
+            throw e;
         }
+    }
 
-        return null;
+    /**
+     * 默认 base path 下的全部服务名
+     */
+    public Collection<String> getServiceNames() throws Exception {
+        return getServiceNames(path);
     }
 
-    private final Random random = new Random();
+    /**
+     * catalogMode 下取自服务目录, 否则查询zk
+     */
+    Collection<String> getServiceNames(String basePath) throws Exception {
+        if (catalogMode) {
+            return catalogOf(basePath).getServiceNames();
+        }
+        return discoveryOf(basePath).queryForNames();
+    }
+
+    public boolean isCatalogMode() {
+        return catalogMode;
+    }
 
-    private ServiceInstance<String> getRandomService(String serviceName) {
+    /**
+     * 用本地快照预先建立全部服务的缓存, 在连接zk之前调用, 冷启动时不必等待zk即可路由
+     */
+    public void loadSnapshot() {
+        loadSnapshot(path);
+    }
 
-        List<ServiceInstance<String>> listservice = listcache.get(serviceName).getInstances();
-        for (ServiceInstance<String> ins : listservice) {
-            System.out.println(ins);
+    /**
+     * 用本地快照预先建立某个 base path 下全部服务的缓存
+     *
+     * @param basePath
+     */
+    public void loadSnapshot(String basePath) {
+        SnapshotStore store = storeOf(basePath);
+        if (store == null) {
+            return;
         }
+        for (String serviceName : store.names()) {
+            ServiceKey serviceKey = namespace(basePath).keyOf(serviceName);
+            if (isCached(serviceKey)) {
+                continue;
+            }
+            ServiceHolder holder = new ServiceHolder(basePath, serviceName, strategyOf(serviceName), store);
+            if (holder.seed()) {
+                listcache.putIfAbsent(serviceKey, holder);
+            }
+        }
+    }
 
-        int index = random.nextInt(listservice.size());
-        return listservice.get(index);
+    /**
+     * base path 对应的本地快照, 没有配置 snapshotDir 时为null
+     */
+    private SnapshotStore storeOf(String basePath) {
+        SnapshotStore store = snapshotStores.get(basePath);
+        if (store != null) {
+            return store;
+        }
+        synchronized (snapshotStores) {
+            store = snapshotStores.get(basePath);
+            if (store == null) {
+                store = SnapshotStore.open(basePath, ensemble);
+                if (store != null) {
+                    snapshotStores.put(basePath, store);
+                }
+            }
+            return store;
+        }
     }
 
 
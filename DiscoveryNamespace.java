@@ -0,0 +1,109 @@
+package com.sohu.smc.common.zk;
+
+import com.google.common.collect.Maps;
+import com.netflix.curator.x.discovery.ServiceInstance;
+import com.sohu.smc.common.zk.flow.Subscriber;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * DiscoveryClientUtil 会话上某个 base path 的查询视图, 本身不持有连接和缓存.
+ * <p/>
+ * 同一个会话可以服务任意多个 base path, 每个 base path 一个 ServiceDiscovery, 服务缓存按 (basePath, serviceName) 共用一个缓存结构.
+ * <pre>
+ *     DiscoveryNamespace smc = DiscoveryClientUtil.getNamespace("/smc");
+ *     DiscoveryNamespace push = DiscoveryClientUtil.getNamespace("/push");
+ *     smc.getService("logmerge");
+ * </pre>
+ * User: shijinkui
+ */
+public class DiscoveryNamespace {
+
+    private final DiscoveryClientUtil client;
+    private final String basePath;
+    /**
+     * 查询用的 key, 每个服务名只建一次
+     */
+    private final ConcurrentMap<String, ServiceKey> keys = Maps.newConcurrentMap();
+
+    DiscoveryNamespace(DiscoveryClientUtil client, String basePath) {
+        this.client = client;
+        this.basePath = basePath;
+    }
+
+    public String getBasePath() {
+        return basePath;
+    }
+
+    public DiscoveryClientUtil getClient() {
+        return client;
+    }
+
+    public ServiceInstance<String> getService(String serviceName) {
+        return getService(serviceName, null);
+    }
+
+    /**
+     * @param serviceName
+     * @param key         用于一致性hash策略, 可以为null
+     * @return
+     */
+    public ServiceInstance<String> getService(String serviceName, String key) {
+        return client.getService(keyOf(serviceName), key);
+    }
+
+    /**
+     * 见 DiscoveryClientUtil.candidates
+     */
+    public CandidateIterator candidates(String serviceName, String key) {
+        return client.candidates(keyOf(serviceName), key);
+    }
+
+    public int pick(String serviceName, String key, ServiceInstance<String>[] out) {
+        return client.pick(keyOf(serviceName), key, out);
+    }
+
+    public List<ServiceInstance<String>> getAllService(String serviceName) {
+        return client.getAllService(keyOf(serviceName));
+    }
+
+    public void release(String serviceName, ServiceInstance<String> instance) {
+        client.release(keyOf(serviceName), instance);
+    }
+
+    public void report(String serviceName, ServiceInstance<String> instance, boolean success, long latencyMicros) {
+        client.report(keyOf(serviceName), instance, success, latencyMicros);
+    }
+
+    public boolean subscribe(String serviceName, Subscriber<? super InstanceDelta> subscriber) {
+        return client.subscribe(keyOf(serviceName), subscriber);
+    }
+
+    /**
+     * base path 下的全部服务名, catalogMode 下取自服务目录, 否则直接读zk
+     */
+    public Collection<String> getServiceNames() throws Exception {
+        return client.getServiceNames(basePath);
+    }
+
+    ServiceKey keyOf(String serviceName) {
+        ServiceKey serviceKey = keys.get(serviceName);
+        if (serviceKey == null) {
+            ServiceKey created = new ServiceKey(basePath, serviceName);
+            serviceKey = keys.putIfAbsent(serviceName, created);
+            if (serviceKey == null) {
+                serviceKey = created;
+            }
+        }
+        return serviceKey;
+    }
+
+    /**
+     * 服务是否已经建立了本地缓存
+     */
+    public boolean isCached(String serviceName) {
+        return client.isCached(keyOf(serviceName));
+    }
+}
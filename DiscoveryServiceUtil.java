@@ -1,25 +1,40 @@
 package com.sohu.smc.common.zk;
 
 
+import com.google.common.base.Charsets;
+import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
-import com.google.common.io.Closeables;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.netflix.curator.framework.CuratorFramework;
-import com.netflix.curator.framework.CuratorFrameworkFactory;
-import com.netflix.curator.retry.RetryOneTime;
-import com.netflix.curator.x.discovery.ServiceDiscovery;
-import com.netflix.curator.x.discovery.ServiceDiscoveryBuilder;
+import com.netflix.curator.framework.api.transaction.CuratorTransaction;
+import com.netflix.curator.framework.api.transaction.CuratorTransactionFinal;
+import com.netflix.curator.utils.ZKPaths;
 import com.netflix.curator.x.discovery.ServiceInstance;
 import com.netflix.curator.x.discovery.ServiceType;
+import com.netflix.curator.x.discovery.details.InstanceSerializer;
+import com.sohu.smc.common.zk.metrics.DiscoveryMetrics;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.Closeable;
-import java.io.IOException;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * server端服务注册
@@ -31,12 +46,40 @@ public class DiscoveryServiceUtil {
 
     private final Logger log = LoggerFactory.getLogger(DiscoveryServiceUtil.class.getName());
 
+    /**
+     * 单个 multi 事务的最大操作数, 避免超过 jute.maxbuffer
+     */
+    static final int MAX_TRANSACTION_OPS = 200;
+
     private final ServiceType nodetype;
     private final String basePath;
 
+    /**
+     * 本进程注册的实例, 共用一个会话
+     */
+    private final RegistrationLeaseManager leases;
+    private final InstanceSerializer<String> serializer = CompactInstanceSerializer.fromConfig();
+
+    /**
+     * service name -> 实例索引, 用于 exist/重复校验/removeService
+     */
+    private final Cache<String, InstanceIndex> indexes = CacheBuilder.newBuilder()
+            .maximumSize(PropertyConfig.getMaxCachedServices())
+            .expireAfterAccess(PropertyConfig.getServiceIdleMs(), TimeUnit.MILLISECONDS)
+            .removalListener(new RemovalListener<String, InstanceIndex>() {
+                @Override
+                public void onRemoval(RemovalNotification<String, InstanceIndex> notification) {
+                    InstanceIndex index = notification.getValue();
+                    if (index != null) {
+                        index.close();
+                    }
+                }
+            }).build();
+
     public DiscoveryServiceUtil(ServiceType nodetype, String basePath) {
         this.nodetype = nodetype;
         this.basePath = basePath;
+        this.leases = new RegistrationLeaseManager(this, PropertyConfig.getZookeeperAddress());
     }
 
     /**
@@ -52,29 +95,34 @@ public class DiscoveryServiceUtil {
      * @return
      */
     public boolean regist(String name, String address, int port, String description) {
-        boolean existed = false, ret = false;
-        Collection<ServiceInstance<String>> list = getServiceList(name);
-        ServiceInstance<String> instance = null;
-
-        if (list != null && list.size() > 0) {
-
-            Iterator<ServiceInstance<String>> it = list.iterator();
-            while (it.hasNext()) {
-                instance = it.next();
-                if (instance.getName().equals(name) && instance.getPort() == port && instance.getAddress().equals(address)) {
-                    existed = true;
-                    log.warn("regist service falure, the service[" + name + "-" + port + "] has existed.");
-                    break;
-                }
-            }
-        }
+        return regist(name, address, port, description, PropertyConfig.getZone());
+    }
 
+    /**
+     * 注册服务并带上 zone/机房信息, 客户端据此优先选择同 zone 的实例
+     *
+     * @param name
+     * @param address
+     * @param port
+     * @param description
+     * @param zone        可以为null
+     * @return
+     */
+    public boolean regist(String name, String address, int port, String description, String zone) {
+        boolean ret = false;
         try {
-            if (existed) {
+            if (PropertyConfig.isDeterministicId()) {
+                //the id is derived from name/address/port, an existing node means a duplicate
+                ServiceInstance<String> instance = ServiceInstance.<String>builder().id(idOf(name, address, port)).address(address).port(port).payload(payloadOf(description, zone)).name(name).serviceType(nodetype).build();
+                return regist(instance);
+            }
+
+            if (exist(name, address, port) != null) {
+                log.warn("regist service falure, the service[" + name + "-" + port + "] has existed.");
                 return false;
             }
 
-            instance = ServiceInstance.<String>builder().address(address).port(port).payload(description).name(name).serviceType(nodetype).build();
+            ServiceInstance<String> instance = ServiceInstance.<String>builder().address(address).port(port).payload(payloadOf(description, zone)).name(name).serviceType(nodetype).build();
             ret = regist(instance);
         } catch (Exception e) {
             e.printStackTrace();
@@ -95,39 +143,424 @@ public class DiscoveryServiceUtil {
      * }
      * </pre>
      *
+     * 节点直接创建, 已存在时视为重复注册; 会话和过期后的重注册由 RegistrationLeaseManager 负责.
+     *
      * @param instance
      * @return
      */
-    private boolean regist(ServiceInstance instance) {
+    private boolean regist(ServiceInstance<String> instance) {
         log.info("===>>" + instance);
-        List<Closeable> closeables = Lists.newArrayList();
-        boolean ret = false;
+        if (leases.isDraining()) {
+            log.warn("regist service falure, draining: " + instance);
+            return false;
+        }
+
+        long start = System.nanoTime();
+        SessionPool.Lease lease = null;
         try {
-            CuratorFramework client = CuratorFrameworkFactory.newClient(PropertyConfig.getZookeeperAddress(), new RetryOneTime(2));
-            closeables.add(client);
-            client.start();
-
-            //regist service
-            ServiceDiscovery discovery = ServiceDiscoveryBuilder.builder(String.class).client(client).basePath(basePath).thisInstance(instance).build();
-            closeables.add(discovery);
-//            discovery.registerService(instance);
-            discovery.start();
-            ret = true;
-        } catch (IOException e) {
-            e.printStackTrace();
-            ret = false;
+            lease = SessionPool.getInstance().acquire(PropertyConfig.getZookeeperAddress(), basePath);
+            lease.client().create().creatingParentsIfNeeded().withMode(modeOf(instance)).forPath(pathOf(instance), serializer.serialize(instance));
+            holdRegistration(instance);
+            indexed(instance, true);
+            DiscoveryMetrics.getInstance().register().recordSince(start);
+            log.info("===regist service successfully.=== " + instance);
+            return true;
+        } catch (KeeperException.NodeExistsException e) {
+            log.warn("regist service falure, the service[" + instance.getName() + "-" + instance.getPort() + "] has existed.");
         } catch (Exception e) {
-            e.printStackTrace();
-            ret = false;
+            log.error("regist service err: " + instance, e);
         } finally {
-            System.out.println("===regist service successfully.=== \n" + instance.toString());
-//            Collections.reverse(closeables);
-//            for (Closeable c : closeables) {
-//                Closeables.closeQuietly(c);
-//            }
+            if (lease != null) {
+                lease.close();
+            }
         }
+        return false;
+    }
 
-        return ret;
+    /**
+     * 批量注册, 每个服务名只查询一次做重复校验, 写操作按 multi 事务提交, 共用一个会话.
+     * <p/>
+     * 唯一标识一个服务的条件同 regist: name, address, port. 返回每个实例的注册结果.
+     *
+     * @param instances
+     * @return
+     */
+    public Map<ServiceInstance<String>, Boolean> registAll(Collection<ServiceInstance<String>> instances) {
+        Map<ServiceInstance<String>, Boolean> result = Maps.newLinkedHashMap();
+        for (ServiceInstance<String> instance : instances) {
+            result.put(instance, false);
+        }
+
+        SessionPool.Lease lease = null;
+        try {
+            lease = SessionPool.getInstance().acquire(PropertyConfig.getZookeeperAddress(), basePath);
+            CuratorFramework client = lease.client();
+
+            Map<String, List<ServiceInstance<String>>> byName = Maps.newLinkedHashMap();
+            for (ServiceInstance<String> instance : instances) {
+                List<ServiceInstance<String>> list = byName.get(instance.getName());
+                if (list == null) {
+                    list = Lists.newArrayList();
+                    byName.put(instance.getName(), list);
+                }
+                list.add(instance);
+            }
+
+            List<String> parents = Lists.newArrayList();
+            if (client.checkExists().forPath(basePath) == null) {
+                parents.add(basePath);
+            }
+
+            List<ServiceInstance<String>> toCreate = Lists.newArrayList();
+            for (Map.Entry<String, List<ServiceInstance<String>>> e : byName.entrySet()) {
+                String servicePath = ZKPaths.makePath(basePath, e.getKey());
+                Collection<ServiceInstance<String>> existed = lease.discovery().queryForInstances(e.getKey());
+                if (existed.isEmpty() && client.checkExists().forPath(servicePath) == null) {
+                    parents.add(servicePath);
+                }
+
+                for (ServiceInstance<String> instance : e.getValue()) {
+                    if (contains(existed, instance) || contains(toCreate, instance)) {
+                        log.warn("regist service falure, the service[" + instance.getName() + "-" + instance.getPort() + "] has existed.");
+                        continue;
+                    }
+                    toCreate.add(instance);
+                }
+            }
+
+            for (String parent : parents) {
+                try {
+                    //a nested base path may be missing its ancestors as well
+                    client.create().creatingParentsIfNeeded().forPath(parent);
+                } catch (KeeperException.NodeExistsException ignore) {
+                    //created concurrently
+                }
+            }
+
+            for (int from = 0; from < toCreate.size(); from += MAX_TRANSACTION_OPS) {
+                List<ServiceInstance<String>> chunk = toCreate.subList(from, Math.min(from + MAX_TRANSACTION_OPS, toCreate.size()));
+                createAll(client, chunk, result, false);
+            }
+
+            for (Map.Entry<ServiceInstance<String>, Boolean> e : result.entrySet()) {
+                if (e.getValue()) {
+                    holdRegistration(e.getKey());
+                    indexed(e.getKey(), true);
+                }
+            }
+        } catch (Exception e) {
+            log.error("batch regist err,", e);
+        } finally {
+            if (lease != null) {
+                lease.close();
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * 批量注销, 按 multi 事务删除, 返回每个实例的注销结果
+     *
+     * @param instances
+     * @return
+     */
+    public Map<ServiceInstance<String>, Boolean> removeAll(Collection<ServiceInstance<String>> instances) {
+        Map<ServiceInstance<String>, Boolean> result = Maps.newLinkedHashMap();
+        for (ServiceInstance<String> instance : instances) {
+            result.put(instance, false);
+        }
+
+        SessionPool.Lease lease = null;
+        try {
+            lease = SessionPool.getInstance().acquire(PropertyConfig.getZookeeperAddress(), basePath);
+            List<ServiceInstance<String>> list = Lists.newArrayList(result.keySet());
+            for (int from = 0; from < list.size(); from += MAX_TRANSACTION_OPS) {
+                List<ServiceInstance<String>> chunk = list.subList(from, Math.min(from + MAX_TRANSACTION_OPS, list.size()));
+                deleteAll(lease.client(), chunk, result);
+            }
+        } catch (Exception e) {
+            log.error("batch remove err,", e);
+        } finally {
+            if (lease != null) {
+                lease.close();
+            }
+        }
+
+        for (Map.Entry<ServiceInstance<String>, Boolean> e : result.entrySet()) {
+            if (e.getValue()) {
+                forget(e.getKey());
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * 一个事务创建整批节点, 事务失败时逐个创建以得到每个实例的结果
+     *
+     * @param owned 节点已存在且是当前会话的临时节点时算作成功
+     */
+    private void createAll(CuratorFramework client, List<ServiceInstance<String>> chunk, Map<ServiceInstance<String>, Boolean> result, boolean owned) throws Exception {
+        if (chunk.isEmpty()) {
+            return;
+        }
+
+        try {
+            CuratorTransaction transaction = client.inTransaction();
+            CuratorTransactionFinal last = null;
+            for (ServiceInstance<String> instance : chunk) {
+                last = transaction.create().withMode(modeOf(instance)).forPath(pathOf(instance), serializer.serialize(instance)).and();
+                transaction = last;
+            }
+            last.commit();
+
+            for (ServiceInstance<String> instance : chunk) {
+                result.put(instance, true);
+            }
+            return;
+        } catch (KeeperException e) {
+            log.warn("batch regist transaction failed, fall back to single create: " + e.getMessage());
+        }
+
+        for (ServiceInstance<String> instance : chunk) {
+            try {
+                client.create().withMode(modeOf(instance)).forPath(pathOf(instance), serializer.serialize(instance));
+                result.put(instance, true);
+            } catch (KeeperException.NodeExistsException e) {
+                if (owned && isOwned(client, instance)) {
+                    result.put(instance, true);
+                } else {
+                    log.warn("regist service falure: " + instance + ", " + e.getMessage());
+                }
+            } catch (KeeperException e) {
+                log.warn("regist service falure: " + instance + ", " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 实例节点是否是当前会话的临时节点
+     */
+    private boolean isOwned(CuratorFramework client, ServiceInstance<String> instance) throws Exception {
+        Stat stat = client.checkExists().forPath(pathOf(instance));
+        return stat != null && stat.getEphemeralOwner() == client.getZookeeperClient().getZooKeeper().getSessionId();
+    }
+
+    /**
+     * 一个事务删除整批节点, 事务失败时逐个删除以得到每个实例的结果
+     */
+    private void deleteAll(CuratorFramework client, List<ServiceInstance<String>> chunk, Map<ServiceInstance<String>, Boolean> result) throws Exception {
+        if (chunk.isEmpty()) {
+            return;
+        }
+
+        try {
+            CuratorTransaction transaction = client.inTransaction();
+            CuratorTransactionFinal last = null;
+            for (ServiceInstance<String> instance : chunk) {
+                last = transaction.delete().forPath(pathOf(instance)).and();
+                transaction = last;
+            }
+            last.commit();
+
+            for (ServiceInstance<String> instance : chunk) {
+                result.put(instance, true);
+            }
+            return;
+        } catch (KeeperException e) {
+            log.warn("batch remove transaction failed, fall back to single delete: " + e.getMessage());
+        }
+
+        for (ServiceInstance<String> instance : chunk) {
+            try {
+                client.delete().forPath(pathOf(instance));
+                result.put(instance, true);
+            } catch (KeeperException e) {
+                log.warn("remove service falure: " + instance + ", " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 注册成功的实例交给 RegistrationLeaseManager, 直到被注销
+     *
+     * @param instance
+     * @throws Exception
+     */
+    void holdRegistration(ServiceInstance<String> instance) throws Exception {
+        leases.add(instance, serializer.serialize(instance).length);
+    }
+
+    /**
+     * 改写已注册实例的节点数据(id 不变), 成功后替换本地记录, 会话过期重注册时写入新数据
+     */
+    boolean updateInstance(ServiceInstance<String> instance) {
+        SessionPool.Lease lease = null;
+        try {
+            lease = SessionPool.getInstance().acquire(PropertyConfig.getZookeeperAddress(), basePath);
+            byte[] data = serializer.serialize(instance);
+            lease.client().setData().forPath(pathOf(instance), data);
+            leases.replace(instance, data.length);
+            indexed(instance, true);
+            return true;
+        } catch (Exception e) {
+            log.error("update service instance err: " + instance, e);
+        } finally {
+            if (lease != null) {
+                lease.close();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 实例节点已被删除, 从索引和本进程的注册中去掉
+     */
+    void forget(ServiceInstance<String> instance) {
+        indexed(instance, false);
+        leases.remove(instance.getId());
+    }
+
+    /**
+     * 服务当前的实例数, 取自实例索引, 索引不可用时返回-1
+     */
+    int instanceCount(String serviceName) {
+        InstanceIndex index = indexOf(serviceName);
+        return index == null ? -1 : index.size();
+    }
+
+    /**
+     * 会话过期后批量重建实例节点, 由 RegistrationLeaseManager 调用; 会话其实没有过期时节点仍在, 算作成功
+     */
+    Map<ServiceInstance<String>, Boolean> recreate(CuratorFramework client, List<ServiceInstance<String>> instances) throws Exception {
+        Map<ServiceInstance<String>, Boolean> result = Maps.newLinkedHashMap();
+        for (int from = 0; from < instances.size(); from += MAX_TRANSACTION_OPS) {
+            createAll(client, instances.subList(from, Math.min(from + MAX_TRANSACTION_OPS, instances.size())), result, true);
+        }
+        return result;
+    }
+
+    /**
+     * 优雅下线: 注销本进程注册的全部实例, 等待 waitMs 让客户端摘掉这些实例并完成已经发出的请求, 然后释放会话.
+     * 之后的 regist 都返回false.
+     *
+     * @param waitMs
+     * @return 注销成功的实例数
+     */
+    public int drain(long waitMs) {
+        leases.setDraining(true);
+        Map<ServiceInstance<String>, Boolean> result = removeAll(leases.getInstances());
+        int removed = 0;
+        for (Boolean ok : result.values()) {
+            if (ok) {
+                removed++;
+            }
+        }
+        log.info("drain " + removed + "/" + result.size() + " instances, wait " + waitMs + "ms before closing session.");
+
+        try {
+            Thread.sleep(waitMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        //release the session even if some instances could not be removed
+        for (ServiceInstance<String> instance : leases.getInstances()) {
+            leases.remove(instance.getId());
+        }
+        return removed;
+    }
+
+    /**
+     * 关闭全部实例索引和注册会话, 释放会话引用并移除监控项; 之后不能再使用
+     */
+    public void close() {
+        indexes.invalidateAll();
+        leases.close();
+    }
+
+    public RegistrationLeaseManager getLeaseManager() {
+        return leases;
+    }
+
+    /**
+     * 由 name/address/port 生成的固定实例 id, 同一个实例每次注册 id 相同
+     */
+    static String idOf(String name, String address, int port) {
+        return UUID.nameUUIDFromBytes((name + "|" + address + ":" + port).getBytes(Charsets.UTF_8)).toString();
+    }
+
+    /**
+     * 服务的实例索引, 不存在时建立; 建立失败返回null
+     */
+    private InstanceIndex indexOf(final String serviceName) {
+        try {
+            return indexes.get(serviceName, new Callable<InstanceIndex>() {
+                @Override
+                public InstanceIndex call() throws Exception {
+                    return InstanceIndex.open(PropertyConfig.getZookeeperAddress(), basePath, serviceName);
+                }
+            });
+        } catch (ExecutionException e) {
+            log.error("build instance index err, service: " + serviceName, e.getCause());
+        } catch (UncheckedExecutionException e) {
+            log.error("build instance index err, service: " + serviceName, e.getCause());
+        }
+        return null;
+    }
+
+    /**
+     * 本进程注册/注销成功后同步更新已经建立的索引
+     */
+    void indexed(ServiceInstance<String> instance, boolean present) {
+        InstanceIndex index = indexes.getIfPresent(instance.getName());
+        if (index == null) {
+            return;
+        }
+        if (present) {
+            index.put(instance);
+        } else {
+            index.remove(instance);
+        }
+    }
+
+    /**
+     * 描述加上 zone 属性, 见 InstancePayload
+     */
+    static String payloadOf(String description, String zone) {
+        if (zone == null) {
+            return description;
+        }
+        return InstancePayload.build(description, ImmutableMap.of(InstancePayload.ZONE, zone));
+    }
+
+    String getBasePath() {
+        return basePath;
+    }
+
+    ServiceType getNodetype() {
+        return nodetype;
+    }
+
+    InstanceSerializer<String> getSerializer() {
+        return serializer;
+    }
+
+    String pathOf(ServiceInstance<String> instance) {
+        return ZKPaths.makePath(ZKPaths.makePath(basePath, instance.getName()), instance.getId());
+    }
+
+    static CreateMode modeOf(ServiceInstance<String> instance) {
+        return instance.getServiceType() == ServiceType.DYNAMIC ? CreateMode.EPHEMERAL : CreateMode.PERSISTENT;
+    }
+
+    static boolean contains(Collection<ServiceInstance<String>> list, ServiceInstance<String> instance) {
+        for (ServiceInstance<String> tmp : list) {
+            if (tmp.getName().equals(instance.getName()) && Objects.equal(tmp.getPort(), instance.getPort()) && Objects.equal(tmp.getAddress(), instance.getAddress())) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
@@ -138,7 +571,12 @@ public class DiscoveryServiceUtil {
      * @return
      */
     public ServiceInstance<String> exist(String serviceName, String address, int port) {
+        InstanceIndex index = indexOf(serviceName);
+        if (index != null) {
+            return index.get(address, port);
+        }
 
+        //index unavailable, fall back to a full read
         Collection<ServiceInstance<String>> list = getServiceList(serviceName);
         Preconditions.checkNotNull((list != null && list.size() > 0), "there no service to unregist.");
 
@@ -161,37 +599,31 @@ public class DiscoveryServiceUtil {
      * @return
      */
     public boolean removeService(String serviceName, String address, int port) {
-        ServiceInstance instance = exist(serviceName, address, port);
+        ServiceInstance<String> instance = exist(serviceName, address, port);
         if (instance == null) {
             return false;
         }
 
-        List<Closeable> closeables = Lists.newArrayList();
         boolean ret = false;
+        SessionPool.Lease lease = null;
         try {
-            CuratorFramework client = CuratorFrameworkFactory.newClient(PropertyConfig.getZookeeperAddress(), new RetryOneTime(1));
-            closeables.add(client);
-            client.start();
-
-            //regist service
-            ServiceDiscovery discovery = ServiceDiscoveryBuilder.builder(String.class).client(client).basePath(basePath).build();
-            closeables.add(discovery);
-            discovery.start();
-            discovery.unregisterService(instance);
+            lease = SessionPool.getInstance().acquire(PropertyConfig.getZookeeperAddress(), basePath);
+            lease.discovery().unregisterService(instance);
             ret = true;
-        } catch (IOException e) {
-            e.printStackTrace();
-            ret = false;
         } catch (Exception e) {
             e.printStackTrace();
             ret = false;
         } finally {
-            Collections.reverse(closeables);
-            for (Closeable c : closeables) {
-                Closeables.closeQuietly(c);
+            if (lease != null) {
+                lease.close();
             }
         }
 
+        if (ret) {
+            indexed(instance, false);
+            leases.remove(instance.getId());
+        }
+
         return ret;
     }
 
@@ -199,50 +631,43 @@ public class DiscoveryServiceUtil {
     public Collection<ServiceInstance<String>> getServiceList(String serviceName) {
 
         Preconditions.checkArgument(serviceName != null, "service name must't be null.");
-        List<Closeable> closeables = Lists.newArrayList();
         Collection<ServiceInstance<String>> list = Lists.newArrayList();
+        SessionPool.Lease lease = null;
+        long start = System.nanoTime();
         try {
-            CuratorFramework client = CuratorFrameworkFactory.newClient(PropertyConfig.getZookeeperAddress(), new RetryOneTime(1));
-            closeables.add(client);
-            client.start();
-
-            ServiceDiscovery discovery = ServiceDiscoveryBuilder.builder(String.class).basePath(basePath).client(client).build();
-            closeables.add(discovery);
-            discovery.start();
-            list = discovery.queryForInstances(serviceName);
+            lease = SessionPool.getInstance().acquire(PropertyConfig.getZookeeperAddress(), basePath);
+            list = lease.discovery().queryForInstances(serviceName);
+            DiscoveryMetrics.getInstance().query().recordSince(start);
 
-            for (ServiceInstance<String> service : list) {
-                System.out.println(service.toString());
+            if (log.isDebugEnabled()) {
+                for (ServiceInstance<String> service : list) {
+                    log.debug(service.toString());
+                }
             }
 
-        } catch (IOException e) {
-            e.printStackTrace();
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
-            Collections.reverse(closeables);
-            for (Closeable c : closeables) {
-                Closeables.closeQuietly(c);
+            if (lease != null) {
+                lease.close();
             }
         }
 
         return list;
     }
 
+    /**
+     * 删除服务下的全部实例节点, 见 InstanceReaper
+     */
     protected void forceDelete(String serviceName) {
-        String path = basePath + "/" + serviceName;
-        CuratorFramework client = CuratorFrameworkFactory.newClient(PropertyConfig.getZookeeperAddress(), new RetryOneTime(1));
-        client.start();
+        InstanceReaper reaper = new InstanceReaper(this);
         try {
-            List<String> instanceIds = client.getChildren().forPath(path);
-            for (String str : instanceIds) {
-                System.out.println("delete note: " + path + "/" + str);
-                client.delete().forPath(path + "/" + str);
-            }
+            reaper.reap(Collections.singleton(serviceName), InstanceReaper.all());
         } catch (Exception e) {
-            e.printStackTrace();
+            log.error("force delete " + serviceName + " err,", e);
+        } finally {
+            reaper.close();
         }
-        client.close();
     }
 
 }
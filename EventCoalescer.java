@@ -0,0 +1,117 @@
+package com.sohu.smc.common.zk;
+
+import com.google.common.collect.Maps;
+import com.sohu.smc.common.zk.metrics.DiscoveryMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * watch 事件合并: 一段安静期之后的第一个事件在调用线程立即 flush 并打开 windowMs 的窗口,
+ * 窗口内的其余事件在窗口结束时合并成一次 flush, 带上合并的事件数; 有事件的窗口结束后接着开下一个窗口, 直到一个窗口内没有事件.
+ * <p/>
+ * 滚动重启时一个服务每秒可能收到上百次变更, 合并后每个窗口最多做一次 sync/快照重建, 单个变更没有额外延迟.
+ * windowMs 为0时不合并, 在调用线程直接 flush.
+ * User: shijinkui
+ */
+public class EventCoalescer<K> {
+
+    private static final Logger log = LoggerFactory.getLogger(EventCoalescer.class.getName());
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "zk-event-coalescer");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private final long windowMs;
+    private final Handler<K> handler;
+
+    /**
+     * key -> 当前窗口内还没有 flush 的事件数, -1 表示窗口已经关闭
+     */
+    private final ConcurrentMap<K, AtomicInteger> pending = Maps.newConcurrentMap();
+
+    public EventCoalescer(long windowMs, Handler<K> handler) {
+        this.windowMs = windowMs;
+        this.handler = handler;
+    }
+
+    public void submit(final K key) {
+        if (windowMs <= 0) {
+            flush(key, 1);
+            return;
+        }
+
+        while (true) {
+            AtomicInteger count = pending.get(key);
+            if (count == null) {
+                AtomicInteger created = new AtomicInteger(0);
+                if (pending.putIfAbsent(key, created) == null) {
+                    flush(key, 1);
+                    schedule(key, created);
+                    return;
+                }
+                continue;
+            }
+
+            int current = count.get();
+            if (current < 0) {
+                //window closed, the next event flushes at once and opens a new one
+                pending.remove(key, count);
+                continue;
+            }
+            if (count.compareAndSet(current, current + 1)) {
+                DiscoveryMetrics.getInstance().collapsedEvents().incr();
+                return;
+            }
+        }
+    }
+
+    private void schedule(final K key, final AtomicInteger window) {
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    int events = window.get();
+                    if (events == 0) {
+                        if (window.compareAndSet(0, -1)) {
+                            pending.remove(key, window);
+                            return;
+                        }
+                    } else if (window.compareAndSet(events, 0)) {
+                        flush(key, events);
+                        schedule(key, window);
+                        return;
+                    }
+                }
+            }
+        }, windowMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void flush(K key, int events) {
+        DiscoveryMetrics.getInstance().eventBatches().incr();
+        try {
+            handler.flush(key, events);
+        } catch (Exception e) {
+            log.error("flush coalesced events err, key: " + key, e);
+        }
+    }
+
+    public interface Handler<K> {
+        /**
+         * @param key
+         * @param events 本窗口合并的事件数
+         */
+        void flush(K key, int events) throws Exception;
+    }
+}
@@ -0,0 +1,318 @@
+package com.sohu.smc.common.zk;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.netflix.curator.x.discovery.ServiceInstance;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 同时订阅多个 zk 集群, 把同名服务在各集群的实例合并成一个视图, 每个实例带上来源集群名.
+ * <p/>
+ * 每个集群一个 DiscoveryClientUtil, 各自的会话、ServiceCache 和本地快照互不影响;
+ * 某个集群不可用时它只贡献最后一次的快照, 其他集群照常服务.
+ * 查询不会阻塞: 还没有缓存的集群先不参与, 同时在 executor 中建立缓存, 建好后的查询自动包含它;
+ * 全部集群都没有缓存的服务, getService 返回null, getAllService 返回空列表.
+ * 合并结果按服务缓存, 只在某个集群的快照变化后重建, 快照不变时查询不分配内存.
+ * <pre>
+ *     ensemble.bj=10.1.1.1:2181,10.1.1.2:2181
+ *     ensemble.gz=10.2.1.1:2181
+ *
+ *     FederatedDiscoveryClient federated = FederatedDiscoveryClient.fromConfig("/smc", executor, 3000);
+ *     federated.start();
+ *     SourcedInstance instance = federated.getService("logmerge");
+ * </pre>
+ * User: shijinkui
+ */
+public class FederatedDiscoveryClient {
+
+    private final Logger log = LoggerFactory.getLogger(FederatedDiscoveryClient.class.getName());
+
+    private final String path;
+    private final Map<String, DiscoveryClientUtil> members;
+    /**
+     * members 的集群名和客户端, 顺序相同, 查询时按下标遍历
+     */
+    private final String[] names;
+    private final DiscoveryClientUtil[] clients;
+    private final ListeningExecutorService executor;
+    private final long timeoutMs;
+    /**
+     * service name -> 合并后的实例, 每个查询过的服务名一个
+     */
+    private final ConcurrentMap<String, MergedView> views = Maps.newConcurrentMap();
+    /**
+     * 正在后台建立缓存的服务名
+     */
+    private final Set<String> warming = Collections.newSetFromMap(Maps.<String, Boolean>newConcurrentMap());
+
+    /**
+     * @param path
+     * @param ensembles 集群名 -> connectString
+     * @param executor  并发连接和建立缓存的线程池
+     * @param timeoutMs start 等待单个集群连接的最长时间
+     */
+    public FederatedDiscoveryClient(String path, Map<String, String> ensembles, ExecutorService executor, long timeoutMs) {
+        Preconditions.checkArgument(!ensembles.isEmpty(), "no zk ensemble.");
+        Preconditions.checkArgument(timeoutMs > 0, "timeout must be positive.");
+        this.path = path;
+        this.executor = MoreExecutors.listeningDecorator(executor);
+        this.timeoutMs = timeoutMs;
+
+        ImmutableMap.Builder<String, DiscoveryClientUtil> builder = ImmutableMap.builder();
+        for (Map.Entry<String, String> e : ensembles.entrySet()) {
+            builder.put(e.getKey(), new DiscoveryClientUtil(path, e.getKey(), e.getValue()));
+        }
+        this.members = builder.build();
+        this.names = members.keySet().toArray(new String[members.size()]);
+        this.clients = members.values().toArray(new DiscoveryClientUtil[members.size()]);
+    }
+
+    /**
+     * 使用 zoo.properties 中的 ensemble.* 配置, 没有配置时只有 address 一个集群, 集群名为 default
+     */
+    public static FederatedDiscoveryClient fromConfig(String path, ExecutorService executor, long timeoutMs) {
+        Map<String, String> ensembles = PropertyConfig.getEnsembles();
+        if (ensembles.isEmpty()) {
+            ensembles = ImmutableMap.of("default", PropertyConfig.getZookeeperAddress());
+        }
+        return new FederatedDiscoveryClient(path, ensembles, executor, timeoutMs);
+    }
+
+    /**
+     * 并发连接全部集群, 每个集群最多等 timeoutMs; 连不上的集群在后台重连, 不影响其他集群
+     */
+    public void start() {
+        List<ListenableFuture<?>> futures = Lists.newArrayListWithCapacity(members.size());
+        for (final DiscoveryClientUtil member : members.values()) {
+            member.loadSnapshot();
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    member.rebuildConnection(path);
+                }
+            }));
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                futures.get(i).get(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                log.warn("zk ensemble " + names[i] + " not connected after " + timeoutMs + "ms, keep connecting in the background.");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.error("connect zk ensemble err,", e);
+            }
+        }
+    }
+
+    public Set<String> getEnsembles() {
+        return members.keySet();
+    }
+
+    /**
+     * 某个集群的客户端, 可以单独设置选择策略等
+     */
+    public DiscoveryClientUtil getMember(String ensemble) {
+        return members.get(ensemble);
+    }
+
+    /**
+     * 按各集群健康实例数加权选一个集群, 再由该集群的选择策略选实例, 被摘除的实例不参与; 没有实例时返回null.
+     * 得到的实例请求结束后交给 report 和 release
+     *
+     * @param serviceName
+     * @return
+     */
+    public SourcedInstance getService(String serviceName) {
+        return getService(serviceName, null);
+    }
+
+    /**
+     * key 用于一致性hash策略, 相同 key 在集群实例数不变时落到同一个集群
+     *
+     * @param serviceName
+     * @param key
+     * @return
+     */
+    public SourcedInstance getService(String serviceName, String key) {
+        int[] weights = new int[clients.length];
+        int total = 0;
+        boolean cold = false;
+        for (int i = 0; i < clients.length; i++) {
+            weights[i] = clients[i].healthyCount(serviceName);
+            total += weights[i];
+            if (weights[i] == 0 && !clients[i].isCached(serviceName)) {
+                cold = true;
+            }
+        }
+        if (cold) {
+            prefetch(serviceName);
+        }
+        if (total == 0) {
+            //every instance is ejected, let the members fall back to ejected ones
+            for (int i = 0; i < clients.length; i++) {
+                weights[i] = clients[i].getSnapshotSize(serviceName);
+                total += weights[i];
+            }
+            if (total == 0) {
+                return null;
+            }
+        }
+
+        int point = key == null ? ThreadLocalRandom.current().nextInt(total) : (key.hashCode() & Integer.MAX_VALUE) % total;
+        for (int i = 0; i < clients.length; i++) {
+            point -= weights[i];
+            if (point < 0) {
+                ServiceInstance<String> instance = clients[i].getService(serviceName, key);
+                return instance == null ? null : new SourcedInstance(names[i], instance);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 全部集群的实例, 只读; 快照不变时返回同一个对象
+     *
+     * @param serviceName
+     * @return
+     */
+    public List<SourcedInstance> getAllService(String serviceName) {
+        MergedView current = views.get(serviceName);
+        if (current == null || !current.isCurrent(serviceName, clients)) {
+            current = rebuild(serviceName);
+        }
+        if (current.cold) {
+            prefetch(serviceName);
+        }
+        return current.view;
+    }
+
+    /**
+     * 请求结果反馈, 交给实例来源集群的客户端处理
+     */
+    public void report(SourcedInstance instance, boolean success, long latencyMicros) {
+        DiscoveryClientUtil member = members.get(instance.getSource());
+        if (member != null) {
+            member.report(instance.getInstance().getName(), instance.getInstance(), success, latencyMicros);
+        }
+    }
+
+    /**
+     * 归还 getService 得到的实例, 交给实例来源集群的选择策略计数
+     */
+    public void release(SourcedInstance instance) {
+        DiscoveryClientUtil member = members.get(instance.getSource());
+        if (member != null) {
+            member.release(instance.getInstance().getName(), instance.getInstance());
+        }
+    }
+
+    /**
+     * 关闭全部集群的客户端
+     */
+    public void close() {
+        views.clear();
+        for (DiscoveryClientUtil member : members.values()) {
+            member.close();
+        }
+    }
+
+    private MergedView rebuild(String serviceName) {
+        List<List<ServiceInstance<String>>> lists = Lists.newArrayListWithCapacity(clients.length);
+        for (DiscoveryClientUtil client : clients) {
+            lists.add(client.getCachedService(serviceName));
+        }
+        MergedView built = new MergedView(names, lists);
+        views.put(serviceName, built);
+        return built;
+    }
+
+    /**
+     * 在 executor 中为还没有缓存的集群建立缓存, 同一服务名同时只有一个任务
+     */
+    private void prefetch(final String serviceName) {
+        if (!warming.add(serviceName)) {
+            return;
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < clients.length; i++) {
+                            if (!clients[i].isCached(serviceName) && !clients[i].warm(serviceName)) {
+                                log.warn("service[" + serviceName + "] not ready in ensemble " + names[i] + ", skip it.");
+                            }
+                        }
+                    } finally {
+                        warming.remove(serviceName);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            warming.remove(serviceName);
+            log.error("prefetch service[" + serviceName + "] err,", e);
+        }
+    }
+
+    /**
+     * 合并后的实例, 记录构建时各集群的快照列表, 快照变化后才需要重建
+     */
+    private static final class MergedView {
+        private final List<List<ServiceInstance<String>>> sources;
+        private final List<SourcedInstance> view;
+        /**
+         * 有集群还没有缓存
+         */
+        private final boolean cold;
+
+        private MergedView(String[] ensembles, List<List<ServiceInstance<String>>> sources) {
+            this.sources = sources;
+            List<SourcedInstance> merged = Lists.newArrayList();
+            boolean missing = false;
+            for (int i = 0; i < ensembles.length; i++) {
+                List<ServiceInstance<String>> list = sources.get(i);
+                if (list == null) {
+                    missing = true;
+                    continue;
+                }
+                for (ServiceInstance<String> instance : list) {
+                    merged.add(new SourcedInstance(ensembles[i], instance));
+                }
+            }
+            this.view = Collections.unmodifiableList(Arrays.asList(merged.toArray(new SourcedInstance[merged.size()])));
+            this.cold = missing;
+        }
+
+        /**
+         * 快照的只读列表在快照不变时是同一个对象, 按引用比较即可
+         */
+        private boolean isCurrent(String serviceName, DiscoveryClientUtil[] clients) {
+            for (int i = 0; i < clients.length; i++) {
+                if (clients[i].getCachedService(serviceName) != sources.get(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
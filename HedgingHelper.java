@@ -0,0 +1,351 @@
+package com.sohu.smc.common.zk;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.netflix.curator.x.discovery.ServiceInstance;
+import com.sohu.smc.common.zk.metrics.DiscoveryMetrics;
+import com.sohu.smc.common.zk.metrics.LatencyHistogram;
+import com.sohu.smc.common.zk.metrics.MetricsExporter;
+
+import java.io.Closeable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 单个服务的 hedged 请求: 请求超过最近延迟的 percentile 分位仍未返回时, 向第二个候选实例发备份请求, 先成功的结果生效, 另一个被取消;
+ * 第一个请求失败且备份还没发出时立即向第二个实例重试.
+ * <p/>
+ * 备份请求和重试共用一个令牌桶, 每个请求存入 budgetPercent/100 个令牌, 每次备份或重试消耗一个,
+ * 所以额外请求不超过请求数的 budgetPercent%, 后端整体变慢时不会被放大流量.
+ * 每个实例的结果都会 report, 第一个实例请求结束后 release. 备份实例取自 candidates, 服务优先本 zone 时先选本 zone 的实例.
+ * <pre>
+ *     HedgingHelper hedging = new HedgingHelper(DiscoveryClientUtil.getNamespace("/smc"), "logmerge");
+ *     ListenableFuture&lt;byte[]&gt; f = hedging.call(null, new HedgingHelper.Call&lt;byte[]&gt;() {...});
+ * </pre>
+ * User: shijinkui
+ */
+public class HedgingHelper implements Closeable {
+
+    private static final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "zk-hedge-timer");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    static {
+        //requests that finish before the hedge delay drop their timer task instead of keeping it queued
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * 延迟统计窗口, 每个窗口结束时用它的样本重算备份延迟
+     */
+    private static final long WINDOW_MS = 5000;
+    private static final int MIN_SAMPLES = 100;
+
+    private static final long TOKEN = 1000;
+    private static final long MAX_TOKENS = 10 * TOKEN;
+
+    /**
+     * 向一个实例发请求, 不应阻塞
+     */
+    public interface Call<V> {
+        ListenableFuture<V> send(ServiceInstance<String> instance);
+    }
+
+    private final DiscoveryClientUtil client;
+    private final ServiceKey serviceKey;
+    private final double percentile;
+    private final long depositPerRequest;
+
+    private final AtomicLong tokens = new AtomicLong(0);
+    private final AtomicLong requests = new AtomicLong(0);
+    private final AtomicLong hedges = new AtomicLong(0);
+    private final AtomicLong failovers = new AtomicLong(0);
+    private final AtomicLong exhausted = new AtomicLong(0);
+
+    private volatile LatencyHistogram window;
+    private volatile long windowStart = System.currentTimeMillis();
+    private volatile long delayMicros;
+    private final DiscoveryMetrics.GaugeSource gauges;
+
+    /**
+     * 客户端默认 base path 下的服务
+     */
+    public HedgingHelper(DiscoveryClientUtil client, String serviceName) {
+        this(client.namespace(client.getBasePath()), serviceName);
+    }
+
+    public HedgingHelper(DiscoveryClientUtil client, String serviceName, double percentile, int budgetPercent, long defaultDelayMs) {
+        this(client.namespace(client.getBasePath()), serviceName, percentile, budgetPercent, defaultDelayMs);
+    }
+
+    public HedgingHelper(DiscoveryNamespace namespace, String serviceName) {
+        this(namespace, serviceName, PropertyConfig.getHedgePercentile(), PropertyConfig.getHedgeBudgetPercent(), PropertyConfig.getHedgeDefaultDelayMs());
+    }
+
+    /**
+     * @param namespace
+     * @param serviceName
+     * @param percentile     0-100
+     * @param budgetPercent  额外请求占请求数的比例上限
+     * @param defaultDelayMs 延迟样本不足时的备份延迟
+     */
+    public HedgingHelper(DiscoveryNamespace namespace, String serviceName, double percentile, int budgetPercent, long defaultDelayMs) {
+        Preconditions.checkArgument(percentile > 0 && percentile < 100, "percentile must be in (0, 100).");
+        Preconditions.checkArgument(budgetPercent >= 0, "budget must't be negative.");
+        this.client = namespace.getClient();
+        this.serviceKey = namespace.keyOf(serviceName);
+        this.percentile = percentile;
+        this.depositPerRequest = budgetPercent * TOKEN / 100;
+        this.delayMicros = TimeUnit.MILLISECONDS.toMicros(Math.max(defaultDelayMs, 1));
+
+        final String suffix = namespace.getBasePath().equals(client.getBasePath()) ? serviceName : serviceKey.toString();
+        this.window = new LatencyHistogram("zk-hedge-" + suffix);
+
+        this.gauges = new DiscoveryMetrics.GaugeSource() {
+            @Override
+            public void collect(MetricsExporter exporter) {
+                exporter.gauge("zk-hedge-requests-" + suffix, requests.get());
+                exporter.gauge("zk-hedge-sent-" + suffix, hedges.get());
+                exporter.gauge("zk-hedge-failover-" + suffix, failovers.get());
+                exporter.gauge("zk-hedge-exhausted-" + suffix, exhausted.get());
+                exporter.gauge("zk-hedge-delay-" + suffix, delayMicros);
+            }
+        };
+        DiscoveryMetrics.getInstance().addGaugeSource(gauges);
+    }
+
+    /**
+     * 发起一次请求
+     *
+     * @param key  用于一致性hash策略, 可以为null
+     * @param call
+     * @return 第一个成功的结果; 全部失败时是最后一个失败
+     */
+    @SuppressWarnings("unchecked")
+    public <V> ListenableFuture<V> call(String key, Call<V> call) {
+        ServiceInstance<String>[] pair = new ServiceInstance[2];
+        int count = client.pick(serviceKey, key, pair);
+        if (count == 0) {
+            return Futures.immediateFailedFuture(new IllegalStateException("no instance of " + serviceKey));
+        }
+
+        requests.incrementAndGet();
+        deposit();
+        Request<V> request = new Request<V>(call, pair[0], pair[1]);
+        request.start();
+        return request.result;
+    }
+
+    /**
+     * 当前的备份请求延迟(微秒)
+     */
+    public long getDelayMicros() {
+        return delayMicros;
+    }
+
+    public long getHedges() {
+        return hedges.get();
+    }
+
+    public long getFailovers() {
+        return failovers.get();
+    }
+
+    @Override
+    public void close() {
+        DiscoveryMetrics.getInstance().removeGaugeSource(gauges);
+    }
+
+    private void record(long micros) {
+        long now = System.currentTimeMillis();
+        if (now - windowStart >= WINDOW_MS) {
+            rotate(now);
+        }
+        window.recordMicros(micros);
+    }
+
+    private synchronized void rotate(long now) {
+        if (now - windowStart < WINDOW_MS) {
+            return;
+        }
+        LatencyHistogram.Snapshot snapshot = window.snapshot();
+        //a quiet window keeps the previous delay rather than trusting a handful of samples
+        if (snapshot.getCount() >= MIN_SAMPLES) {
+            delayMicros = Math.max(snapshot.getPercentile(percentile), 1);
+        }
+        window = new LatencyHistogram(window.getName());
+        windowStart = now;
+    }
+
+    private void deposit() {
+        while (true) {
+            long current = tokens.get();
+            long next = Math.min(current + depositPerRequest, MAX_TOKENS);
+            if (next == current || tokens.compareAndSet(current, next)) {
+                return;
+            }
+        }
+    }
+
+    private boolean withdraw() {
+        while (true) {
+            long current = tokens.get();
+            if (current < TOKEN) {
+                exhausted.incrementAndGet();
+                return false;
+            }
+            if (tokens.compareAndSet(current, current - TOKEN)) {
+                return true;
+            }
+        }
+    }
+
+    private final class Request<V> {
+        private final SettableFuture<V> result = SettableFuture.create();
+        private final Call<V> call;
+        private final ServiceInstance<String> primary;
+        private final ServiceInstance<String> backup;
+
+        private int inflight = 0;
+        private boolean backupSent = false;
+        private volatile ListenableFuture<V> primaryFuture;
+        private volatile ListenableFuture<V> backupFuture;
+        private volatile ScheduledFuture<?> hedgeTask;
+
+        private Request(Call<V> call, ServiceInstance<String> primary, ServiceInstance<String> backup) {
+            this.call = call;
+            this.primary = primary;
+            this.backup = backup;
+        }
+
+        private void start() {
+            synchronized (this) {
+                inflight++;
+            }
+            primaryFuture = send(primary, true);
+
+            if (backup != null) {
+                hedgeTask = timer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!result.isDone() && claimBackup()) {
+                            hedges.incrementAndGet();
+                            backupFuture = send(backup, false);
+                            cancelIfDone();
+                        }
+                    }
+                }, delayMicros, TimeUnit.MICROSECONDS);
+            }
+
+            result.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    cancel(primaryFuture);
+                    cancel(backupFuture);
+                    ScheduledFuture<?> task = hedgeTask;
+                    if (task != null) {
+                        task.cancel(false);
+                    }
+                }
+            }, MoreExecutors.sameThreadExecutor());
+        }
+
+        /**
+         * result 在备份请求发出期间完成时, 它的 listener 可能已经执行过而没有看到 backupFuture
+         */
+        private void cancelIfDone() {
+            if (result.isDone()) {
+                cancel(backupFuture);
+            }
+        }
+
+        private synchronized boolean claimBackup() {
+            if (backup == null || backupSent || result.isDone() || !withdraw()) {
+                return false;
+            }
+            backupSent = true;
+            inflight++;
+            return true;
+        }
+
+        /**
+         * @return 没有其他请求在进行时是否可以重试
+         */
+        private synchronized boolean failed() {
+            inflight--;
+            return inflight == 0 && !result.isDone();
+        }
+
+        private ListenableFuture<V> send(final ServiceInstance<String> instance, final boolean first) {
+            final long start = System.nanoTime();
+            ListenableFuture<V> future;
+            try {
+                future = call.send(instance);
+            } catch (Exception e) {
+                future = Futures.immediateFailedFuture(e);
+            }
+
+            Futures.addCallback(future, new FutureCallback<V>() {
+                @Override
+                public void onSuccess(V value) {
+                    long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+                    finish(instance, first, true, micros);
+                    record(micros);
+                    result.set(value);
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    //the loser of a hedge is cancelled, which says nothing about the instance
+                    boolean cancelled = t instanceof CancellationException;
+                    if (cancelled) {
+                        release(instance, first);
+                    } else {
+                        finish(instance, first, false, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+                    }
+                    if (!failed() || cancelled) {
+                        return;
+                    }
+                    if (claimBackup()) {
+                        failovers.incrementAndGet();
+                        backupFuture = send(backup, false);
+                        cancelIfDone();
+                    } else {
+                        result.setException(t);
+                    }
+                }
+            });
+            return future;
+        }
+
+        private void finish(ServiceInstance<String> instance, boolean first, boolean success, long micros) {
+            client.report(serviceKey, instance, success, micros);
+            release(instance, first);
+        }
+
+        private void release(ServiceInstance<String> instance, boolean first) {
+            if (first) {
+                client.release(serviceKey, instance);
+            }
+        }
+
+        private void cancel(ListenableFuture<V> future) {
+            if (future != null && !future.isDone()) {
+                future.cancel(false);
+            }
+        }
+    }
+}
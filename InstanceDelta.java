@@ -0,0 +1,177 @@
+package com.sohu.smc.common.zk;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.netflix.curator.x.discovery.ServiceInstance;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 某个服务从 fromVersion 到 version 的实例变化, 按 instance id 比较, 不可变.
+ * <p/>
+ * 订阅后收到的第一个 delta 的 fromVersion 为0, added 是当时的全部实例.
+ * 订阅方处理不过来时相邻的 delta 会被 merge 成一个, 版本区间随之变宽, 结果与逐个应用相同.
+ * User: shijinkui
+ */
+public final class InstanceDelta {
+
+    private final String serviceName;
+    private final long fromVersion;
+    private final long version;
+    private final List<ServiceInstance<String>> added;
+    private final List<ServiceInstance<String>> removed;
+    private final List<ServiceInstance<String>> updated;
+
+    public InstanceDelta(String serviceName, long fromVersion, long version, Collection<ServiceInstance<String>> added,
+                         Collection<ServiceInstance<String>> removed, Collection<ServiceInstance<String>> updated) {
+        this.serviceName = serviceName;
+        this.fromVersion = fromVersion;
+        this.version = version;
+        this.added = ImmutableList.copyOf(added);
+        this.removed = ImmutableList.copyOf(removed);
+        this.updated = ImmutableList.copyOf(updated);
+    }
+
+    /**
+     * 两个快照之间的变化
+     */
+    static InstanceDelta diff(String serviceName, long fromVersion, long version, ServiceSnapshot before, ServiceSnapshot after) {
+        Map<String, ServiceInstance<String>> old = Maps.newHashMapWithExpectedSize(before.size());
+        for (int i = 0; i < before.size(); i++) {
+            old.put(before.get(i).getId(), before.get(i));
+        }
+
+        ImmutableList.Builder<ServiceInstance<String>> added = ImmutableList.builder();
+        ImmutableList.Builder<ServiceInstance<String>> updated = ImmutableList.builder();
+        for (int i = 0; i < after.size(); i++) {
+            ServiceInstance<String> instance = after.get(i);
+            ServiceInstance<String> previous = old.remove(instance.getId());
+            if (previous == null) {
+                added.add(instance);
+            } else if (!same(previous, instance)) {
+                updated.add(instance);
+            }
+        }
+        return new InstanceDelta(serviceName, fromVersion, version, added.build(), old.values(), updated.build());
+    }
+
+    /**
+     * 两个快照的实例内容是否相同, 等价于 diff(...).isEmpty() 但不建立 delta; 顺序相同时不分配内存
+     */
+    static boolean unchanged(ServiceSnapshot before, ServiceSnapshot after) {
+        if (before.size() != after.size()) {
+            return false;
+        }
+        int i = 0;
+        while (i < after.size() && before.get(i).getId().equals(after.get(i).getId())) {
+            if (!same(before.get(i), after.get(i))) {
+                return false;
+            }
+            i++;
+        }
+        if (i == after.size()) {
+            return true;
+        }
+
+        Map<String, ServiceInstance<String>> old = Maps.newHashMapWithExpectedSize(before.size() - i);
+        for (int j = i; j < before.size(); j++) {
+            old.put(before.get(j).getId(), before.get(j));
+        }
+        for (int j = i; j < after.size(); j++) {
+            ServiceInstance<String> previous = old.remove(after.get(j).getId());
+            if (previous == null || !same(previous, after.get(j))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean same(ServiceInstance<String> a, ServiceInstance<String> b) {
+        return Objects.equal(a.getAddress(), b.getAddress()) && Objects.equal(a.getPort(), b.getPort())
+                && Objects.equal(a.getSslPort(), b.getSslPort()) && Objects.equal(a.getPayload(), b.getPayload())
+                && a.getRegistrationTimeUTC() == b.getRegistrationTimeUTC() && a.getServiceType() == b.getServiceType();
+    }
+
+    /**
+     * 先应用本 delta 再应用 next 的等价 delta, next 必须紧接在本 delta 之后
+     *
+     * @param next
+     * @return
+     */
+    public InstanceDelta merge(InstanceDelta next) {
+        Map<String, ServiceInstance<String>> add = byId(added);
+        Map<String, ServiceInstance<String>> remove = byId(removed);
+        Map<String, ServiceInstance<String>> update = byId(updated);
+
+        for (ServiceInstance<String> instance : next.removed) {
+            String id = instance.getId();
+            update.remove(id);
+            if (add.remove(id) == null) {
+                remove.put(id, instance);
+            }
+        }
+        for (ServiceInstance<String> instance : next.added) {
+            String id = instance.getId();
+            ServiceInstance<String> gone = remove.remove(id);
+            if (gone == null) {
+                add.put(id, instance);
+            } else if (!same(gone, instance)) {
+                update.put(id, instance);
+            }
+        }
+        for (ServiceInstance<String> instance : next.updated) {
+            String id = instance.getId();
+            if (add.containsKey(id)) {
+                add.put(id, instance);
+            } else {
+                update.put(id, instance);
+            }
+        }
+        return new InstanceDelta(serviceName, fromVersion, next.version, add.values(), remove.values(), update.values());
+    }
+
+    private static Map<String, ServiceInstance<String>> byId(List<ServiceInstance<String>> list) {
+        Map<String, ServiceInstance<String>> map = Maps.newLinkedHashMap();
+        for (ServiceInstance<String> instance : list) {
+            map.put(instance.getId(), instance);
+        }
+        return map;
+    }
+
+    public String getServiceName() {
+        return serviceName;
+    }
+
+    public long getFromVersion() {
+        return fromVersion;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public List<ServiceInstance<String>> getAdded() {
+        return added;
+    }
+
+    public List<ServiceInstance<String>> getRemoved() {
+        return removed;
+    }
+
+    public List<ServiceInstance<String>> getUpdated() {
+        return updated;
+    }
+
+    public boolean isEmpty() {
+        return added.isEmpty() && removed.isEmpty() && updated.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "InstanceDelta{" + serviceName + " " + fromVersion + "->" + version + ", added=" + added.size()
+                + ", removed=" + removed.size() + ", updated=" + updated.size() + "}";
+    }
+}
@@ -0,0 +1,111 @@
+package com.sohu.smc.common.zk;
+
+import com.google.common.collect.Maps;
+import com.google.common.io.Closeables;
+import com.netflix.curator.framework.CuratorFramework;
+import com.netflix.curator.framework.state.ConnectionState;
+import com.netflix.curator.x.discovery.ServiceCache;
+import com.netflix.curator.x.discovery.ServiceInstance;
+import com.netflix.curator.x.discovery.details.ServiceCacheListener;
+import com.sohu.smc.common.zk.metrics.DiscoveryMetrics;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 单个服务的实例索引, key 为 address:port, 由 ServiceCache 的 watch 维护.
+ * <p/>
+ * 注册端的 exist/重复校验/removeService 查索引, 不再每次 queryForInstances 后逐个比较.
+ * 本进程的注册和注销在成功后立即写入索引, 不必等 watch 回来.
+ * User: shijinkui
+ */
+class InstanceIndex implements ServiceCacheListener, Closeable {
+
+    private static final EventCoalescer<InstanceIndex> coalescer = new EventCoalescer<InstanceIndex>(PropertyConfig.getEventWindowMs(), new EventCoalescer.Handler<InstanceIndex>() {
+        @Override
+        public void flush(InstanceIndex index, int events) {
+            index.rebuild();
+        }
+    });
+
+    private final String name;
+    private final SessionPool.Lease lease;
+    private final ServiceCache<String> cache;
+    private volatile ConcurrentMap<String, ServiceInstance<String>> byKey = Maps.newConcurrentMap();
+
+    private InstanceIndex(String name, SessionPool.Lease lease, ServiceCache<String> cache) {
+        this.name = name;
+        this.lease = lease;
+        this.cache = cache;
+    }
+
+    /**
+     * 在会话池的会话上建立索引, close 时释放会话引用
+     */
+    static InstanceIndex open(String connectString, String basePath, String name) throws Exception {
+        SessionPool.Lease lease = SessionPool.getInstance().acquire(connectString, basePath);
+        ServiceCache<String> cache = null;
+        try {
+            cache = lease.discovery().serviceCacheBuilder().name(name).build();
+            InstanceIndex index = new InstanceIndex(name, lease, cache);
+            cache.addListener(index);
+            cache.start();
+            index.rebuild();
+            return index;
+        } catch (Exception e) {
+            Closeables.closeQuietly(cache);
+            lease.close();
+            throw e;
+        }
+    }
+
+    static String keyOf(String address, Integer port) {
+        return address + ":" + port;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public ServiceInstance<String> get(String address, int port) {
+        return byKey.get(keyOf(address, port));
+    }
+
+    public int size() {
+        return byKey.size();
+    }
+
+    void put(ServiceInstance<String> instance) {
+        byKey.put(keyOf(instance.getAddress(), instance.getPort()), instance);
+    }
+
+    void remove(ServiceInstance<String> instance) {
+        byKey.remove(keyOf(instance.getAddress(), instance.getPort()), instance);
+    }
+
+    private synchronized void rebuild() {
+        List<ServiceInstance<String>> instances = cache.getInstances();
+        ConcurrentMap<String, ServiceInstance<String>> rebuilt = Maps.newConcurrentMap();
+        for (ServiceInstance<String> instance : instances) {
+            rebuilt.put(keyOf(instance.getAddress(), instance.getPort()), instance);
+        }
+        byKey = rebuilt;
+    }
+
+    @Override
+    public void cacheChanged() {
+        DiscoveryMetrics.getInstance().indexEvents().incr();
+        coalescer.submit(this);
+    }
+
+    @Override
+    public void stateChanged(CuratorFramework client, ConnectionState newState) {
+    }
+
+    @Override
+    public void close() {
+        Closeables.closeQuietly(cache);
+        lease.close();
+    }
+}
@@ -0,0 +1,138 @@
+package com.sohu.smc.common.zk;
+
+import com.google.common.collect.Maps;
+
+import java.util.Map;
+
+/**
+ * 实例 payload 的约定格式: 描述在前, 属性以 key=value 跟在后面, 用分号分隔.
+ * <pre>
+ *     logmerge;weight=8
+ * </pre>
+ * 不含 '=' 的部分都当作描述, 老的纯描述 payload 解析出来没有任何属性.
+ * User: shijinkui
+ */
+public final class InstancePayload {
+
+    public static final String WEIGHT = "weight";
+    public static final String ZONE = "zone";
+
+    /**
+     * LoadReporter 写入的实时负载: 处理中的请求数、CPU 使用率(0-100)、排队请求数
+     */
+    public static final String INFLIGHT = "inflight";
+    public static final String CPU = "cpu";
+    public static final String QUEUE = "queue";
+
+    private static final char SEPARATOR = ';';
+
+    private InstancePayload() {
+    }
+
+    public static Map<String, String> parse(String payload) {
+        Map<String, String> attrs = Maps.newLinkedHashMap();
+        if (payload == null) {
+            return attrs;
+        }
+
+        int start = 0, len = payload.length();
+        while (start <= len) {
+            int end = payload.indexOf(SEPARATOR, start);
+            if (end < 0) {
+                end = len;
+            }
+            int eq = payload.indexOf('=', start);
+            if (eq > start && eq < end) {
+                attrs.put(payload.substring(start, eq).trim(), payload.substring(eq + 1, end).trim());
+            }
+            start = end + 1;
+        }
+        return attrs;
+    }
+
+    public static String get(String payload, String key) {
+        return parse(payload).get(key);
+    }
+
+    public static int getInt(String payload, String key, int def) {
+        String value = get(payload, key);
+        if (value == null || value.length() == 0) {
+            return def;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return def;
+        }
+    }
+
+    /**
+     * 负载分数: 待处理请求数 / 空闲CPU比例, 越小越空闲; 没有上报负载的实例为 NaN, 由 ServiceSnapshot 换成上报实例的中位数
+     */
+    public static double loadScore(Map<String, String> attrs) {
+        if (!attrs.containsKey(INFLIGHT) && !attrs.containsKey(CPU) && !attrs.containsKey(QUEUE)) {
+            return Double.NaN;
+        }
+        int pending = getInt(attrs, INFLIGHT) + getInt(attrs, QUEUE);
+        int cpu = Math.min(Math.max(getInt(attrs, CPU), 0), 99);
+        return (pending + 1) * 100.0 / (100 - cpu);
+    }
+
+    private static int getInt(Map<String, String> attrs, String key) {
+        String value = attrs.get(key);
+        if (value == null || value.length() == 0) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * 在原 payload 上设置属性, 描述和其他属性保持不变
+     */
+    public static String with(String payload, Map<String, String> updates) {
+        StringBuilder description = new StringBuilder();
+        Map<String, String> attrs = Maps.newLinkedHashMap();
+        if (payload != null) {
+            int start = 0, len = payload.length();
+            while (start <= len) {
+                int end = payload.indexOf(SEPARATOR, start);
+                if (end < 0) {
+                    end = len;
+                }
+                int eq = payload.indexOf('=', start);
+                if (eq > start && eq < end) {
+                    attrs.put(payload.substring(start, eq).trim(), payload.substring(eq + 1, end).trim());
+                } else if (end > start) {
+                    if (description.length() > 0) {
+                        description.append(SEPARATOR);
+                    }
+                    description.append(payload, start, end);
+                }
+                start = end + 1;
+            }
+        }
+        attrs.putAll(updates);
+        return build(description.length() == 0 ? null : description.toString(), attrs);
+    }
+
+    /**
+     * 拼装 payload, 描述可以为null
+     */
+    public static String build(String description, Map<String, String> attrs) {
+        StringBuilder sb = new StringBuilder();
+        if (description != null) {
+            sb.append(description);
+        }
+        for (Map.Entry<String, String> e : attrs.entrySet()) {
+            if (sb.length() > 0) {
+                sb.append(SEPARATOR);
+            }
+            sb.append(e.getKey()).append('=').append(e.getValue());
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,695 @@
+package com.sohu.smc.common.zk;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.Closeables;
+import com.netflix.curator.framework.CuratorFramework;
+import com.netflix.curator.framework.api.BackgroundCallback;
+import com.netflix.curator.framework.api.CuratorEvent;
+import com.netflix.curator.framework.api.transaction.CuratorTransaction;
+import com.netflix.curator.framework.api.transaction.CuratorTransactionFinal;
+import com.netflix.curator.utils.ZKPaths;
+import com.netflix.curator.x.discovery.ServiceInstance;
+import com.netflix.curator.x.discovery.ServiceType;
+import com.sohu.smc.common.zk.metrics.DiscoveryMetrics;
+import com.sohu.smc.common.zk.metrics.MetricsExporter;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 清理 basePath 下的失效实例: 扫描全部(或指定)服务的实例节点, 用 Check 判断是否失效, 再按 multi 事务批量删除.
+ * <p/>
+ * 读节点用 background 请求流水线发出, 同时在途的请求不超过 maxInflight; 判断和删除在 parallelism 个线程中并发,
+ * 删除速度不超过 deletesPerSec. 删除带扫描时的节点版本, 扫描后被改写或重新注册的实例不会被误删.
+ * 除 all() 外, 本进程注册的实例和无法解析的节点不会被删除. 每次清理输出一行 key=value 的 Report.
+ * <pre>
+ *     InstanceReaper reaper = new InstanceReaper(serviceUtil);
+ *     reaper.start(600000, InstanceReaper.any(InstanceReaper.olderThan(7 * 24 * 3600 * 1000L, true), InstanceReaper.unreachable(1000)));
+ * </pre>
+ * User: shijinkui
+ */
+public class InstanceReaper implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(InstanceReaper.class.getName());
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "zk-reaper");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private static final long SCAN_TIMEOUT_MS = 60000;
+
+    /**
+     * 判断实例是否失效
+     */
+    public interface Check {
+        /**
+         * 每次清理开始时调用一次
+         */
+        void prepare() throws Exception;
+
+        /**
+         * 扫描完成后、判断前调用一次
+         */
+        void scanned() throws Exception;
+
+        /**
+         * @return 失效原因, 有效时返回null
+         */
+        String check(ServiceInstance<String> instance, Stat stat, long now);
+    }
+
+    private static final Check ALL = new Check() {
+        @Override
+        public void prepare() {
+        }
+
+        @Override
+        public void scanned() {
+        }
+
+        @Override
+        public String check(ServiceInstance<String> instance, Stat stat, long now) {
+            return "forced";
+        }
+    };
+
+    private final DiscoveryServiceUtil serviceUtil;
+    private final String connectString;
+    private final int parallelism;
+    private final int maxInflight;
+    private final int deletesPerSec;
+    private final ExecutorService workers;
+
+    private final AtomicLong nextPermit = new AtomicLong(System.nanoTime());
+    private final AtomicLong scanned = new AtomicLong(0);
+    private final AtomicLong deleted = new AtomicLong(0);
+    private final AtomicLong failed = new AtomicLong(0);
+    private final DiscoveryMetrics.GaugeSource gauges;
+    private ScheduledFuture<?> task;
+
+    public InstanceReaper(DiscoveryServiceUtil serviceUtil) {
+        this(serviceUtil, PropertyConfig.getZookeeperAddress(), PropertyConfig.getReaperParallelism(), PropertyConfig.getReaperMaxInflight(), PropertyConfig.getReaperDeletesPerSec());
+    }
+
+    /**
+     * @param serviceUtil
+     * @param connectString
+     * @param parallelism   判断和删除的线程数
+     * @param maxInflight   扫描时同时在途的读请求数
+     * @param deletesPerSec 每秒最多删除的实例数, 0 不限制
+     */
+    public InstanceReaper(DiscoveryServiceUtil serviceUtil, String connectString, int parallelism, int maxInflight, int deletesPerSec) {
+        Preconditions.checkArgument(parallelism > 0, "parallelism must be positive.");
+        Preconditions.checkArgument(maxInflight > 0, "max inflight must be positive.");
+        this.serviceUtil = serviceUtil;
+        this.connectString = connectString;
+        this.parallelism = parallelism;
+        this.maxInflight = maxInflight;
+        this.deletesPerSec = deletesPerSec;
+        this.workers = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+            private final AtomicInteger seq = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "zk-reaper-worker-" + seq.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        final String suffix = "-" + serviceUtil.getBasePath();
+        this.gauges = new DiscoveryMetrics.GaugeSource() {
+            @Override
+            public void collect(MetricsExporter exporter) {
+                exporter.gauge("zk-reaper-scanned" + suffix, scanned.get());
+                exporter.gauge("zk-reaper-deleted" + suffix, deleted.get());
+                exporter.gauge("zk-reaper-failed" + suffix, failed.get());
+            }
+        };
+        DiscoveryMetrics.getInstance().addGaugeSource(gauges);
+    }
+
+    /**
+     * 全部实例都算失效, 包括本进程注册的, 用于 forceDelete
+     */
+    public static Check all() {
+        return ALL;
+    }
+
+    /**
+     * registrationTimeUTC 早于 maxAgeMs 之前的实例
+     *
+     * @param maxAgeMs
+     * @param permanentOnly 只判断 PERMANENT 实例, DYNAMIC 实例随会话消失
+     */
+    public static Check olderThan(final long maxAgeMs, final boolean permanentOnly) {
+        return new Check() {
+            @Override
+            public void prepare() {
+            }
+
+            @Override
+            public void scanned() {
+            }
+
+            @Override
+            public String check(ServiceInstance<String> instance, Stat stat, long now) {
+                if (permanentOnly && instance.getServiceType() != ServiceType.PERMANENT) {
+                    return null;
+                }
+                return now - instance.getRegistrationTimeUTC() > maxAgeMs ? "expired" : null;
+            }
+        };
+    }
+
+    /**
+     * timeoutMs 内 TCP 连不上 address:port 的实例
+     */
+    public static Check unreachable(final int timeoutMs) {
+        return new Check() {
+            @Override
+            public void prepare() {
+            }
+
+            @Override
+            public void scanned() {
+            }
+
+            @Override
+            public String check(ServiceInstance<String> instance, Stat stat, long now) {
+                if (instance.getAddress() == null || instance.getPort() == null) {
+                    return null;
+                }
+                Socket socket = new Socket();
+                try {
+                    socket.connect(new InetSocketAddress(instance.getAddress(), instance.getPort()), timeoutMs);
+                    return null;
+                } catch (Exception e) {
+                    return "unreachable";
+                } finally {
+                    Closeables.closeQuietly(socket);
+                }
+            }
+        };
+    }
+
+    /**
+     * 临时节点的 owner 会话已经不在任何 zk 服务端上的实例, 进程崩溃后不必等会话超时.
+     * 会话列表取自每个服务端的 cons 四字命令, 任何一个服务端取不到时本次不判断.
+     * <p/>
+     * cons 只列出当前连在该服务端上的会话: connectString 必须列出集群的全部成员(不能是 VIP 或部分成员),
+     * 否则连在其他成员上的会话都会被当作已不存在. 正在重连的会话和扫描期间新建的会话也不在某一次的列表中,
+     * 所以扫描前后各取一次, 两次都不在才算; 创建时间在 sessionTimeoutMs 之内的节点不判断.
+     *
+     * @param connectString    集群全部成员
+     * @param sessionTimeoutMs 集群会话超时的上限
+     */
+    public static Check ownerGone(final String connectString, final long sessionTimeoutMs) {
+        return new Check() {
+            private volatile Set<Long> before;
+            private volatile Set<Long> after;
+            private volatile long preparedAt;
+
+            @Override
+            public void prepare() {
+                preparedAt = System.currentTimeMillis();
+                before = liveSessions(connectString);
+                after = null;
+            }
+
+            @Override
+            public void scanned() {
+                after = before == null ? null : liveSessions(connectString);
+            }
+
+            @Override
+            public String check(ServiceInstance<String> instance, Stat stat, long now) {
+                Set<Long> first = before;
+                Set<Long> second = after;
+                long owner = stat.getEphemeralOwner();
+                if (first == null || second == null || owner == 0) {
+                    return null;
+                }
+                if (stat.getCtime() > preparedAt - sessionTimeoutMs) {
+                    return null;
+                }
+                return first.contains(owner) || second.contains(owner) ? null : "orphaned";
+            }
+        };
+    }
+
+    /**
+     * 任何一个 Check 认为失效即失效, 原因取第一个
+     */
+    public static Check any(final Check... checks) {
+        return new Check() {
+            @Override
+            public void prepare() throws Exception {
+                for (Check check : checks) {
+                    check.prepare();
+                }
+            }
+
+            @Override
+            public void scanned() throws Exception {
+                for (Check check : checks) {
+                    check.scanned();
+                }
+            }
+
+            @Override
+            public String check(ServiceInstance<String> instance, Stat stat, long now) {
+                for (Check check : checks) {
+                    String reason = check.check(instance, stat, now);
+                    if (reason != null) {
+                        return reason;
+                    }
+                }
+                return null;
+            }
+        };
+    }
+
+    /**
+     * 由 reaperMaxAgeMs / reaperProbeTimeoutMs / reaperOwnerCheck(+reaperSessionTimeoutMs) 配置组合的 Check, 都没有配置时返回null
+     */
+    public static Check fromConfig() {
+        List<Check> checks = Lists.newArrayList();
+        if (PropertyConfig.getReaperMaxAgeMs() > 0) {
+            checks.add(olderThan(PropertyConfig.getReaperMaxAgeMs(), true));
+        }
+        if (PropertyConfig.isReaperOwnerCheck()) {
+            checks.add(ownerGone(PropertyConfig.getZookeeperAddress(), PropertyConfig.getReaperSessionTimeoutMs()));
+        }
+        //the probe is the expensive one, so it runs last
+        if (PropertyConfig.getReaperProbeTimeoutMs() > 0) {
+            checks.add(unreachable((int) PropertyConfig.getReaperProbeTimeoutMs()));
+        }
+        return checks.isEmpty() ? null : any(checks.toArray(new Check[checks.size()]));
+    }
+
+    /**
+     * 定期清理全部服务
+     *
+     * @param periodMs
+     * @param check
+     */
+    public synchronized void start(long periodMs, final Check check) {
+        Preconditions.checkArgument(check != null, "check must't be null.");
+        if (task != null) {
+            task.cancel(false);
+        }
+        task = scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    reap(check);
+                } catch (Exception e) {
+                    log.error("reap instances err,", e);
+                }
+            }
+        }, periodMs, periodMs, TimeUnit.MILLISECONDS);
+    }
+
+    public Report reap(Check check) throws Exception {
+        return reap(null, check);
+    }
+
+    /**
+     * 立即清理一次
+     *
+     * @param serviceNames 为null时清理 basePath 下全部服务
+     * @param check
+     * @return
+     */
+    public Report reap(Collection<String> serviceNames, final Check check) throws Exception {
+        long start = System.currentTimeMillis();
+        SessionPool.Lease lease = SessionPool.getInstance().acquire(connectString, serviceUtil.getBasePath());
+        try {
+            CuratorFramework client = lease.client();
+            check.prepare();
+
+            Collection<String> names = serviceNames == null ? childrenOf(client, serviceUtil.getBasePath()) : serviceNames;
+            List<Node> nodes = scan(client, names, check == ALL);
+            check.scanned();
+            List<Node> stale = select(nodes, check);
+            int removed = delete(client, stale);
+
+            Map<String, Integer> reasons = Maps.newTreeMap();
+            for (Node node : stale) {
+                Integer count = reasons.get(node.reason);
+                reasons.put(node.reason, count == null ? 1 : count + 1);
+            }
+            Report report = new Report(names.size(), nodes.size(), stale.size(), removed, reasons, System.currentTimeMillis() - start);
+            log.info("reap " + serviceUtil.getBasePath() + ": " + report);
+            return report;
+        } finally {
+            lease.close();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (task != null) {
+            task.cancel(false);
+            task = null;
+        }
+        workers.shutdownNow();
+        DiscoveryMetrics.getInstance().removeGaugeSource(gauges);
+    }
+
+    /**
+     * @param unreadable 是否包括无法解析的节点, 这些节点的 instance 为null
+     */
+    private List<Node> scan(CuratorFramework client, Collection<String> names, final boolean unreadable) throws Exception {
+        final ConcurrentLinkedQueue<Node> nodes = new ConcurrentLinkedQueue<Node>();
+        final Semaphore inflight = new Semaphore(maxInflight);
+
+        for (String name : names) {
+            String servicePath = ZKPaths.makePath(serviceUtil.getBasePath(), name);
+            for (String id : childrenOf(client, servicePath)) {
+                final String path = ZKPaths.makePath(servicePath, id);
+                inflight.acquire();
+                try {
+                    client.getData().inBackground(new BackgroundCallback() {
+                        @Override
+                        public void processResult(CuratorFramework client, CuratorEvent event) throws Exception {
+                            try {
+                                if (event.getResultCode() == KeeperException.Code.OK.intValue()) {
+                                    nodes.add(new Node(path, serviceUtil.getSerializer().deserialize(event.getData()), event.getStat()));
+                                } else if (event.getResultCode() != KeeperException.Code.NONODE.intValue()) {
+                                    log.warn("read instance falure: " + path + ", code " + event.getResultCode());
+                                }
+                            } catch (Exception e) {
+                                if (unreadable) {
+                                    nodes.add(new Node(path, null, event.getStat()));
+                                } else {
+                                    //left in place, a node we cannot parse is not proof that it is stale
+                                    log.warn("unreadable instance: " + path + ", " + e.getMessage());
+                                }
+                            } finally {
+                                inflight.release();
+                            }
+                        }
+                    }).forPath(path);
+                } catch (Exception e) {
+                    inflight.release();
+                    throw e;
+                }
+            }
+        }
+
+        //all permits back means every read has called back
+        if (!inflight.tryAcquire(maxInflight, SCAN_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+            throw new TimeoutException("scan " + serviceUtil.getBasePath() + " timeout.");
+        }
+        scanned.addAndGet(nodes.size());
+        return Lists.newArrayList(nodes);
+    }
+
+    private List<Node> select(List<Node> nodes, final Check check) throws Exception {
+        final long now = System.currentTimeMillis();
+        final boolean keepOwn = check != ALL;
+        List<Future<List<Node>>> futures = Lists.newArrayListWithCapacity(parallelism);
+        int slice = (nodes.size() + parallelism - 1) / parallelism;
+        for (int from = 0; from < nodes.size(); from += slice) {
+            final List<Node> part = nodes.subList(from, Math.min(from + slice, nodes.size()));
+            futures.add(workers.submit(new Callable<List<Node>>() {
+                @Override
+                public List<Node> call() {
+                    List<Node> stale = Lists.newArrayList();
+                    for (Node node : part) {
+                        if (keepOwn && serviceUtil.getLeaseManager().get(node.instance.getId()) != null) {
+                            continue;
+                        }
+                        node.reason = check.check(node.instance, node.stat, now);
+                        if (node.reason != null) {
+                            stale.add(node);
+                        }
+                    }
+                    return stale;
+                }
+            }));
+        }
+
+        List<Node> stale = Lists.newArrayList();
+        for (Future<List<Node>> future : futures) {
+            stale.addAll(future.get());
+        }
+        return stale;
+    }
+
+    private int delete(final CuratorFramework client, List<Node> stale) throws Exception {
+        List<Future<Integer>> futures = Lists.newArrayList();
+        for (int from = 0; from < stale.size(); from += DiscoveryServiceUtil.MAX_TRANSACTION_OPS) {
+            final List<Node> chunk = stale.subList(from, Math.min(from + DiscoveryServiceUtil.MAX_TRANSACTION_OPS, stale.size()));
+            futures.add(workers.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    acquire(chunk.size());
+                    return deleteAll(client, chunk);
+                }
+            }));
+        }
+
+        int removed = 0;
+        for (Future<Integer> future : futures) {
+            removed += future.get();
+        }
+        return removed;
+    }
+
+    /**
+     * 一个事务删除整批节点, 事务失败时逐个删除; 版本已变的节点跳过
+     */
+    private int deleteAll(CuratorFramework client, List<Node> chunk) throws Exception {
+        try {
+            CuratorTransaction transaction = client.inTransaction();
+            CuratorTransactionFinal last = null;
+            for (Node node : chunk) {
+                last = transaction.delete().withVersion(node.stat.getVersion()).forPath(node.path).and();
+                transaction = last;
+            }
+            last.commit();
+
+            for (Node node : chunk) {
+                forget(node);
+            }
+            deleted.addAndGet(chunk.size());
+            return chunk.size();
+        } catch (KeeperException e) {
+            log.warn("batch reap transaction failed, fall back to single delete: " + e.getMessage());
+        }
+
+        int removed = 0;
+        for (Node node : chunk) {
+            try {
+                client.delete().withVersion(node.stat.getVersion()).forPath(node.path);
+                forget(node);
+                removed++;
+            } catch (KeeperException.NoNodeException e) {
+                //already gone
+            } catch (KeeperException.BadVersionException e) {
+                log.info("instance changed since scan, keep it: " + node.path);
+            } catch (KeeperException e) {
+                failed.incrementAndGet();
+                log.warn("reap instance falure: " + node.path + ", " + e.getMessage());
+            }
+        }
+        deleted.addAndGet(removed);
+        return removed;
+    }
+
+    private void forget(Node node) {
+        if (node.instance != null) {
+            serviceUtil.forget(node.instance);
+        }
+    }
+
+    /**
+     * 按 deletesPerSec 预约删除的时间片, 不够时睡眠等待
+     */
+    private void acquire(int permits) throws InterruptedException {
+        if (deletesPerSec <= 0) {
+            return;
+        }
+        long cost = permits * TimeUnit.SECONDS.toNanos(1) / deletesPerSec;
+        while (true) {
+            long now = System.nanoTime();
+            long next = nextPermit.get();
+            long at = next - now > 0 ? next : now;
+            if (nextPermit.compareAndSet(next, at + cost)) {
+                long wait = at - now;
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                return;
+            }
+        }
+    }
+
+    private static List<String> childrenOf(CuratorFramework client, String path) throws Exception {
+        try {
+            return client.getChildren().forPath(path);
+        } catch (KeeperException.NoNodeException e) {
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * 全部服务端 cons 输出中的会话id, 任何一个服务端失败时返回null
+     */
+    static Set<Long> liveSessions(String connectString) {
+        Set<Long> sessions = Sets.newHashSet();
+        for (String server : connectString.split(",")) {
+            String hostPort = server.trim();
+            int slash = hostPort.indexOf('/');
+            if (slash >= 0) {
+                hostPort = hostPort.substring(0, slash);
+            }
+            int colon = hostPort.lastIndexOf(':');
+            String host = colon > 0 ? hostPort.substring(0, colon) : hostPort;
+            int port = colon > 0 ? Integer.parseInt(hostPort.substring(colon + 1)) : 2181;
+
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(host, port), 3000);
+                socket.setSoTimeout(3000);
+                OutputStream out = socket.getOutputStream();
+                out.write("cons".getBytes(Charsets.US_ASCII));
+                out.flush();
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), Charsets.US_ASCII));
+                String line;
+                while ((line = in.readLine()) != null) {
+                    int sid = line.indexOf("sid=0x");
+                    if (sid < 0) {
+                        continue;
+                    }
+                    int end = sid + "sid=0x".length();
+                    while (end < line.length() && Character.digit(line.charAt(end), 16) >= 0) {
+                        end++;
+                    }
+                    sessions.add(Long.parseLong(line.substring(sid + "sid=0x".length(), end), 16));
+                }
+            } catch (Exception e) {
+                log.warn("cons " + hostPort + " failed, skip owner check: " + e.getMessage());
+                return null;
+            } finally {
+                Closeables.closeQuietly(socket);
+            }
+        }
+        return sessions;
+    }
+
+    private static final class Node {
+        private final String path;
+        /**
+         * 无法解析的节点为null, 只在 all() 时出现
+         */
+        private final ServiceInstance<String> instance;
+        private final Stat stat;
+        private String reason;
+
+        private Node(String path, ServiceInstance<String> instance, Stat stat) {
+            this.path = path;
+            this.instance = instance;
+            this.stat = stat;
+        }
+    }
+
+    /**
+     * 一次清理的结果
+     */
+    public static final class Report {
+        private final int services;
+        private final int scanned;
+        private final int stale;
+        private final int deleted;
+        private final Map<String, Integer> reasons;
+        private final long elapsedMs;
+
+        private Report(int services, int scanned, int stale, int deleted, Map<String, Integer> reasons, long elapsedMs) {
+            this.services = services;
+            this.scanned = scanned;
+            this.stale = stale;
+            this.deleted = deleted;
+            this.reasons = ImmutableMap.copyOf(reasons);
+            this.elapsedMs = elapsedMs;
+        }
+
+        public int getScanned() {
+            return scanned;
+        }
+
+        public int getStale() {
+            return stale;
+        }
+
+        public int getDeleted() {
+            return deleted;
+        }
+
+        /**
+         * 失效原因 -> 实例数
+         */
+        public Map<String, Integer> getReasons() {
+            return reasons;
+        }
+
+        public long getElapsedMs() {
+            return elapsedMs;
+        }
+
+        public double getDeletesPerSec() {
+            return elapsedMs == 0 ? deleted : deleted * 1000.0 / elapsedMs;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("services=").append(services).append(" scanned=").append(scanned).append(" stale=").append(stale)
+                    .append(" deleted=").append(deleted).append(" elapsedMs=").append(elapsedMs)
+                    .append(" deletesPerSec=").append(String.format("%.1f", getDeletesPerSec()));
+            for (Map.Entry<String, Integer> e : reasons.entrySet()) {
+                sb.append(" stale.").append(e.getKey()).append('=').append(e.getValue());
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package com.sohu.smc.common.zk;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.netflix.curator.x.discovery.ServiceInstance;
+import com.netflix.curator.x.discovery.ServiceInstanceBuilder;
+import com.sohu.smc.common.zk.metrics.DiscoveryMetrics;
+import com.sohu.smc.common.zk.metrics.MetricsExporter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 把已注册实例的实时负载(inflight/cpu/queue)写进实例 payload, 客户端用 LOAD_AWARE 策略读取.
+ * <p/>
+ * report 只记录最新值, 后台每 loadReportIntervalMs 检查一次, 期间的多次 report 合并为一次写入;
+ * 与上次写入的值相比变化小于 loadReportMinChangePercent 时不写.
+ * 单个实例两次写入的间隔不小于 服务实例数 / loadReportFleetWritesPerSec 秒, 同一服务整个集群的写入速率不超过该上限.
+ * <pre>
+ *     LoadReporter reporter = new LoadReporter(serviceUtil);
+ *     reporter.report("logmerge", "10.1.1.1", 8090, inflight, cpu, queue);
+ * </pre>
+ * User: shijinkui
+ */
+public class LoadReporter implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(LoadReporter.class.getName());
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "zk-load-reporter");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private final DiscoveryServiceUtil serviceUtil;
+    private final long intervalMs;
+    private final int minChangePercent;
+    private final int fleetWritesPerSec;
+
+    /**
+     * instance id -> 上报状态
+     */
+    private final ConcurrentMap<String, Entry> entries = Maps.newConcurrentMap();
+    private final AtomicLong writes = new AtomicLong(0);
+    private final AtomicLong skipped = new AtomicLong(0);
+    private final AtomicLong coalesced = new AtomicLong(0);
+    private final ScheduledFuture<?> task;
+    private final DiscoveryMetrics.GaugeSource gauges;
+
+    public LoadReporter(DiscoveryServiceUtil serviceUtil) {
+        this(serviceUtil, PropertyConfig.getLoadReportIntervalMs(), PropertyConfig.getLoadReportMinChangePercent(), PropertyConfig.getLoadReportFleetWritesPerSec());
+    }
+
+    public LoadReporter(DiscoveryServiceUtil serviceUtil, long intervalMs, int minChangePercent, int fleetWritesPerSec) {
+        this.serviceUtil = serviceUtil;
+        this.intervalMs = intervalMs;
+        this.minChangePercent = minChangePercent;
+        this.fleetWritesPerSec = Math.max(fleetWritesPerSec, 1);
+
+        //spread the first flush so a fleet restarted together does not write in lockstep
+        long delay = ThreadLocalRandom.current().nextLong(Math.max(intervalMs, 1));
+        this.task = scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flush();
+                } catch (Exception e) {
+                    log.error("flush load report err,", e);
+                }
+            }
+        }, delay, intervalMs, TimeUnit.MILLISECONDS);
+
+        this.gauges = new DiscoveryMetrics.GaugeSource() {
+            @Override
+            public void collect(MetricsExporter exporter) {
+                exporter.gauge("zk-load-writes", writes.get());
+                exporter.gauge("zk-load-skipped", skipped.get());
+                exporter.gauge("zk-load-coalesced", coalesced.get());
+            }
+        };
+        DiscoveryMetrics.getInstance().addGaugeSource(gauges);
+    }
+
+    /**
+     * 上报某个本进程注册的实例的负载, 不阻塞
+     *
+     * @param name
+     * @param address
+     * @param port
+     * @param inflight   处理中的请求数
+     * @param cpuPercent CPU 使用率 0-100
+     * @param queueDepth 排队请求数
+     * @return 实例是否由本进程注册
+     */
+    public boolean report(String name, String address, int port, int inflight, int cpuPercent, int queueDepth) {
+        ServiceInstance<String> instance = serviceUtil.getLeaseManager().find(name, address, port);
+        if (instance == null) {
+            return false;
+        }
+
+        Entry entry = entries.get(instance.getId());
+        if (entry == null) {
+            Entry created = new Entry(instance.getId(), name);
+            entry = entries.putIfAbsent(instance.getId(), created);
+            if (entry == null) {
+                entry = created;
+            }
+        }
+        if (entry.pending.getAndSet(new Load(inflight, cpuPercent, queueDepth)) != null) {
+            coalesced.incrementAndGet();
+        }
+        return true;
+    }
+
+    private void flush() throws Exception {
+        long now = System.currentTimeMillis();
+        Map<String, Integer> sizes = Maps.newHashMap();
+        for (Entry entry : entries.values()) {
+            ServiceInstance<String> instance = serviceUtil.getLeaseManager().get(entry.id);
+            if (instance == null) {
+                //deregistered
+                entries.remove(entry.id, entry);
+                continue;
+            }
+
+            Load load = entry.pending.get();
+            if (load == null || now < entry.lastWrite + minWriteInterval(entry.name, sizes)) {
+                continue;
+            }
+            if (!entry.pending.compareAndSet(load, null)) {
+                //a newer value arrived, take it on the next round
+                continue;
+            }
+            if (entry.written != null && !changed(entry.written, load)) {
+                skipped.incrementAndGet();
+                continue;
+            }
+
+            String payload = InstancePayload.with(instance.getPayload(), ImmutableMap.of(
+                    InstancePayload.INFLIGHT, String.valueOf(load.inflight),
+                    InstancePayload.CPU, String.valueOf(load.cpu),
+                    InstancePayload.QUEUE, String.valueOf(load.queue)));
+            ServiceInstance<String> updated;
+            try {
+                updated = withPayload(instance, payload);
+            } catch (Exception e) {
+                entry.pending.compareAndSet(null, load);
+                throw e;
+            }
+            if (serviceUtil.updateInstance(updated)) {
+                entry.written = load;
+                entry.lastWrite = now;
+                writes.incrementAndGet();
+            } else {
+                entry.pending.compareAndSet(null, load);
+            }
+        }
+    }
+
+    /**
+     * 只换 payload 的同一个实例, id/registrationTimeUTC/serviceType/uriSpec 都保持不变
+     */
+    private static ServiceInstance<String> withPayload(ServiceInstance<String> instance, String payload) throws Exception {
+        ServiceInstanceBuilder<String> builder = ServiceInstance.<String>builder().name(instance.getName()).id(instance.getId())
+                .address(instance.getAddress()).payload(payload).registrationTimeUTC(instance.getRegistrationTimeUTC())
+                .serviceType(instance.getServiceType()).uriSpec(instance.getUriSpec());
+        if (instance.getPort() != null) {
+            builder.port(instance.getPort());
+        }
+        if (instance.getSslPort() != null) {
+            builder.sslPort(instance.getSslPort());
+        }
+        return builder.build();
+    }
+
+    /**
+     * 同一服务的全部实例合计不超过 fleetWritesPerSec
+     */
+    private long minWriteInterval(String name, Map<String, Integer> sizes) {
+        Integer size = sizes.get(name);
+        if (size == null) {
+            size = Math.max(serviceUtil.instanceCount(name), 1);
+            sizes.put(name, size);
+        }
+        return Math.max(intervalMs, size * 1000L / fleetWritesPerSec);
+    }
+
+    private boolean changed(Load before, Load after) {
+        return changed(before.inflight, after.inflight) || changed(before.queue, after.queue)
+                || Math.abs(before.cpu - after.cpu) >= minChangePercent;
+    }
+
+    private boolean changed(int before, int after) {
+        int diff = Math.abs(after - before);
+        return diff > 0 && diff * 100L >= (long) Math.max(before, 1) * minChangePercent;
+    }
+
+    public long getWrites() {
+        return writes.get();
+    }
+
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    @Override
+    public void close() {
+        task.cancel(false);
+        DiscoveryMetrics.getInstance().removeGaugeSource(gauges);
+    }
+
+    private static final class Entry {
+        private final String id;
+        private final String name;
+        private final AtomicReference<Load> pending = new AtomicReference<Load>();
+        private volatile Load written;
+        private volatile long lastWrite = 0;
+
+        private Entry(String id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+    }
+
+    private static final class Load {
+        private final int inflight;
+        private final int cpu;
+        private final int queue;
+
+        private Load(int inflight, int cpu, int queue) {
+            this.inflight = inflight;
+            this.cpu = cpu;
+            this.queue = queue;
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package com.sohu.smc.common.zk;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.netflix.curator.x.discovery.ServiceInstance;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 被动的异常实例摘除: 调用方通过 report 反馈每次请求的结果, 连续失败或延迟明显高于同服务其他实例的实例暂时不参与选择.
+ * <p/>
+ * 摘除时间从 outlierEjectionMs 开始, 每次再被摘除翻倍, 最长 MAX_EJECTION_MULTIPLIER 倍;
+ * 同时被摘除的实例不超过 outlierMaxEjectionPercent, 摘除前用 CAS 占一个名额, 摘除时间过后归还. 延迟规则每 EVALUATE_INTERVAL_MS 在 report 中顺带评估一次.
+ * 状态按 instance id 存在 ConcurrentMap 中, report/isEjected 都不加锁.
+ * User: shijinkui
+ */
+public class OutlierDetector {
+
+    private static final Logger log = LoggerFactory.getLogger(OutlierDetector.class.getName());
+
+    private static final long EVALUATE_INTERVAL_MS = 1000;
+    private static final int MAX_EJECTION_MULTIPLIER = 10;
+
+    /**
+     * 延迟超过同服务实例延迟中位数的倍数时摘除
+     */
+    private static final double LATENCY_MULTIPLIER = 3.0;
+
+    /**
+     * 至少有这么多实例有延迟数据时才按延迟摘除
+     */
+    private static final int LATENCY_MIN_HOSTS = 3;
+
+    private final String name;
+    private final int consecutiveErrors;
+    private final long ejectionMs;
+    private final int maxEjectionPercent;
+
+    private final ConcurrentMap<String, Health> health = Maps.newConcurrentMap();
+    private final AtomicLong nextEvaluation = new AtomicLong(0);
+    /**
+     * 占用摘除名额的实例数
+     */
+    private final AtomicInteger ejected = new AtomicInteger(0);
+
+    public OutlierDetector(String name) {
+        this(name, PropertyConfig.getOutlierConsecutiveErrors(), PropertyConfig.getOutlierEjectionMs(), PropertyConfig.getOutlierMaxEjectionPercent());
+    }
+
+    public OutlierDetector(String name, int consecutiveErrors, long ejectionMs, int maxEjectionPercent) {
+        this.name = name;
+        this.consecutiveErrors = consecutiveErrors;
+        this.ejectionMs = ejectionMs;
+        this.maxEjectionPercent = maxEjectionPercent;
+    }
+
+    /**
+     * 快照变化时同步实例列表, 保留仍然存在的实例的状态
+     *
+     * @param snapshot
+     */
+    public void update(ServiceSnapshot snapshot) {
+        Set<String> ids = Sets.newHashSetWithExpectedSize(snapshot.size());
+        for (int i = 0; i < snapshot.size(); i++) {
+            String id = snapshot.get(i).getId();
+            ids.add(id);
+            if (!health.containsKey(id)) {
+                health.putIfAbsent(id, new Health());
+            }
+        }
+        Iterator<Map.Entry<String, Health>> it = health.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Health> e = it.next();
+            if (!ids.contains(e.getKey())) {
+                it.remove();
+                release(e.getValue());
+            }
+        }
+    }
+
+    public boolean isEjected(ServiceInstance<String> instance) {
+        Health h = health.get(instance.getId());
+        if (h == null) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        if (h.ejectedUntil > now) {
+            return true;
+        }
+        reinstate(h, now);
+        return false;
+    }
+
+    /**
+     * 请求结果反馈
+     *
+     * @param instance
+     * @param success
+     * @param latencyMicros
+     */
+    public void report(ServiceInstance<String> instance, boolean success, long latencyMicros) {
+        Health h = health.get(instance.getId());
+        if (h == null) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        h.updateLatency(latencyMicros);
+        if (success) {
+            h.errors.set(0);
+            if (h.ejections.get() > 0 && now - h.ejectedUntil > ejectionMs * MAX_EJECTION_MULTIPLIER) {
+                //healthy for a full back-off period, forget the history
+                h.ejections.set(0);
+            }
+        } else if (h.errors.incrementAndGet() >= consecutiveErrors && h.ejectedUntil <= now) {
+            eject(instance.getId(), h, now, "consecutive errors");
+        }
+
+        long next = nextEvaluation.get();
+        if (now >= next && nextEvaluation.compareAndSet(next, now + EVALUATE_INTERVAL_MS)) {
+            evaluateLatency(now);
+        }
+    }
+
+    public int ejectedCount() {
+        long now = System.currentTimeMillis();
+        int count = 0;
+        for (Health h : health.values()) {
+            if (h.ejectedUntil > now) {
+                count++;
+            } else {
+                reinstate(h, now);
+            }
+        }
+        return count;
+    }
+
+    private void evaluateLatency(long now) {
+        List<Long> latencies = Lists.newArrayList();
+        for (Health h : health.values()) {
+            long latency = h.latency.get();
+            if (latency > 0) {
+                latencies.add(latency);
+            }
+        }
+        if (latencies.size() < LATENCY_MIN_HOSTS) {
+            return;
+        }
+
+        Collections.sort(latencies);
+        long threshold = (long) (latencies.get(latencies.size() / 2) * LATENCY_MULTIPLIER);
+        for (Map.Entry<String, Health> e : health.entrySet()) {
+            Health h = e.getValue();
+            if (h.latency.get() > threshold && h.ejectedUntil <= now) {
+                eject(e.getKey(), h, now, "latency " + h.latency.get() + "us over " + threshold + "us");
+            }
+        }
+    }
+
+    private void eject(String id, Health h, long now, String reason) {
+        int times = Math.min(h.ejections.get() + 1, MAX_EJECTION_MULTIPLIER);
+        long duration = ejectionMs << Math.min(times - 1, 30);
+        long until = now + Math.min(duration, ejectionMs * MAX_EJECTION_MULTIPLIER);
+
+        long held = h.held.get();
+        if (held > now) {
+            //ejected by another thread
+            return;
+        }
+        //an ejection that has just ended may still hold its slot, the new one takes it over
+        if (held == 0) {
+            if (!reserve(now)) {
+                return;
+            }
+            if (!h.held.compareAndSet(0, until)) {
+                ejected.decrementAndGet();
+                return;
+            }
+        } else if (!h.held.compareAndSet(held, until)) {
+            return;
+        }
+
+        h.ejections.incrementAndGet();
+        h.ejectedUntil = until;
+        h.errors.set(0);
+        //give the instance a fresh latency sample when it comes back
+        h.latency.set(0);
+        if (health.get(id) != h) {
+            //removed by update in between
+            release(h);
+            return;
+        }
+        log.warn("service[" + name + "] eject instance " + id + " for " + (until - now) + "ms, " + reason);
+    }
+
+    /**
+     * 占一个摘除名额, 名额用完时先收回摘除时间已过的实例的名额再试一次
+     */
+    private boolean reserve(long now) {
+        boolean reclaimed = false;
+        while (true) {
+            int count = ejected.get();
+            if (count >= health.size() * maxEjectionPercent / 100) {
+                if (reclaimed) {
+                    return false;
+                }
+                for (Health h : health.values()) {
+                    reinstate(h, now);
+                }
+                reclaimed = true;
+                continue;
+            }
+            if (ejected.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 摘除时间已过时归还名额
+     */
+    private void reinstate(Health h, long now) {
+        long held = h.held.get();
+        if (held != 0 && held <= now && h.held.compareAndSet(held, 0)) {
+            ejected.decrementAndGet();
+        }
+    }
+
+    private void release(Health h) {
+        long held = h.held.get();
+        if (held != 0 && h.held.compareAndSet(held, 0)) {
+            ejected.decrementAndGet();
+        }
+    }
+
+    private static class Health {
+        private final AtomicInteger errors = new AtomicInteger(0);
+        private final AtomicInteger ejections = new AtomicInteger(0);
+
+        /**
+         * 延迟的指数移动平均(微秒), 权重 1/8
+         */
+        private final AtomicLong latency = new AtomicLong(0);
+        private volatile long ejectedUntil = 0;
+        /**
+         * 占用摘除名额时为那次摘除的结束时间, 否则为0
+         */
+        private final AtomicLong held = new AtomicLong(0);
+
+        private void updateLatency(long micros) {
+            while (true) {
+                long current = latency.get();
+                long next = current == 0 ? micros : current + ((micros - current) >> 3);
+                if (latency.compareAndSet(current, next)) {
+                    return;
+                }
+            }
+        }
+    }
+}
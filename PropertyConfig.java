@@ -1,8 +1,11 @@
 package com.sohu.smc.common.zk;
 
+import com.google.common.collect.ImmutableMap;
 import com.sohu.smc.common.util.PropertyUtil;
 
+import java.util.Map;
 import java.util.Properties;
+import java.util.TreeMap;
 
 /**
  * Created with IntelliJ IDEA.
@@ -13,8 +16,40 @@ import java.util.Properties;
  */
 public final class PropertyConfig {
 
+    private static final String ENSEMBLE_PREFIX = "ensemble.";
+
     private static String address;
     private static String kafkaPort;
+    private static long sessionIdleMs;
+    private static String snapshotDir;
+    private static long snapshotMaxStaleMs;
+    private static long maxCachedServices;
+    private static long serviceIdleMs;
+    private static boolean binarySerializer;
+    private static int outlierConsecutiveErrors;
+    private static long outlierEjectionMs;
+    private static int outlierMaxEjectionPercent;
+    private static long eventWindowMs;
+    private static String zone;
+    private static int zoneMinHealthy;
+    private static int zoneMinHealthyPercent;
+    private static Map<String, String> ensembles;
+    private static boolean deterministicId;
+    private static int deltaBufferSize;
+    private static long loadReportIntervalMs;
+    private static int loadReportMinChangePercent;
+    private static int loadReportFleetWritesPerSec;
+    private static int hedgePercentile;
+    private static int hedgeBudgetPercent;
+    private static long hedgeDefaultDelayMs;
+    private static int reaperParallelism;
+    private static int reaperMaxInflight;
+    private static int reaperDeletesPerSec;
+    private static long reaperMaxAgeMs;
+    private static long reaperProbeTimeoutMs;
+    private static boolean reaperOwnerCheck;
+    private static long reaperSessionTimeoutMs;
+    private static boolean catalogMode;
 
     static {
         load();
@@ -28,12 +63,278 @@ public final class PropertyConfig {
         return address;
     }
 
+    /**
+     * 会话池中空闲会话的回收时间, 默认60秒
+     */
+    public static long getSessionIdleMs() {
+        return sessionIdleMs;
+    }
+
+    /**
+     * 本地服务快照目录, 不配置则不启用快照
+     */
+    public static String getSnapshotDir() {
+        return snapshotDir;
+    }
+
+    /**
+     * 本地快照的最长可用时间, 默认1天
+     */
+    public static long getSnapshotMaxStaleMs() {
+        return snapshotMaxStaleMs;
+    }
+
+    /**
+     * 客户端最多缓存的服务数, 超过后按LRU关闭, 默认1024
+     */
+    public static long getMaxCachedServices() {
+        return maxCachedServices;
+    }
+
+    /**
+     * 客户端服务缓存的空闲关闭时间, 默认30分钟
+     */
+    public static long getServiceIdleMs() {
+        return serviceIdleMs;
+    }
+
+    /**
+     * serializer=binary 时注册节点写二进制格式, 默认写 JSON; 读取总是兼容两种格式
+     */
+    public static boolean isBinarySerializer() {
+        return binarySerializer;
+    }
+
+    /**
+     * 连续失败多少次摘除实例, 默认5
+     */
+    public static int getOutlierConsecutiveErrors() {
+        return outlierConsecutiveErrors;
+    }
+
+    /**
+     * 首次摘除时间, 默认30秒
+     */
+    public static long getOutlierEjectionMs() {
+        return outlierEjectionMs;
+    }
+
+    /**
+     * 同一服务最多同时摘除的实例比例, 默认50
+     */
+    public static int getOutlierMaxEjectionPercent() {
+        return outlierMaxEjectionPercent;
+    }
+
+    /**
+     * watch 事件合并窗口, 默认100ms, 0表示不合并
+     */
+    public static long getEventWindowMs() {
+        return eventWindowMs;
+    }
+
+    /**
+     * 本机所在的 zone/机房, 注册时写入 payload, 选择时优先同 zone 的实例; 不配置则不区分 zone
+     */
+    public static String getZone() {
+        return zone;
+    }
+
+    /**
+     * 本 zone 至少有多少健康实例才优先本 zone, 默认1
+     */
+    public static int getZoneMinHealthy() {
+        return zoneMinHealthy;
+    }
+
+    /**
+     * 本 zone 健康实例至少占本 zone 实例的百分比才优先本 zone, 默认50
+     */
+    public static int getZoneMinHealthyPercent() {
+        return zoneMinHealthyPercent;
+    }
+
+    /**
+     * 多 zk 集群: ensemble.&lt;name&gt;=connectString, 按名字排序; 没有配置时为空
+     */
+    public static Map<String, String> getEnsembles() {
+        return ensembles;
+    }
+
+    /**
+     * deterministicId=true 时实例 id 由 name/address/port 生成, 注册不必先读已有实例; 默认false
+     */
+    public static boolean isDeterministicId() {
+        return deterministicId;
+    }
+
+    /**
+     * 每个变化订阅最多缓存的 delta 数, 超过后合并, 默认16
+     */
+    public static int getDeltaBufferSize() {
+        return deltaBufferSize;
+    }
+
+    /**
+     * 负载上报的检查间隔, 也是单个实例两次写入的最小间隔, 默认1秒
+     */
+    public static long getLoadReportIntervalMs() {
+        return loadReportIntervalMs;
+    }
+
+    /**
+     * 负载变化小于这个百分比时不写, 默认10
+     */
+    public static int getLoadReportMinChangePercent() {
+        return loadReportMinChangePercent;
+    }
+
+    /**
+     * 同一服务全部实例合计每秒最多写入次数, 默认100
+     */
+    public static int getLoadReportFleetWritesPerSec() {
+        return loadReportFleetWritesPerSec;
+    }
+
+    /**
+     * 请求超过这个延迟百分位仍未返回时发备份请求, 默认95
+     */
+    public static int getHedgePercentile() {
+        return hedgePercentile;
+    }
+
+    /**
+     * 备份请求和失败重试占请求数的比例上限, 默认5
+     */
+    public static int getHedgeBudgetPercent() {
+        return hedgeBudgetPercent;
+    }
+
+    /**
+     * 延迟样本不足时的备份请求延迟, 默认50毫秒
+     */
+    public static long getHedgeDefaultDelayMs() {
+        return hedgeDefaultDelayMs;
+    }
+
+    /**
+     * InstanceReaper 判断和删除的线程数, 默认4
+     */
+    public static int getReaperParallelism() {
+        return reaperParallelism;
+    }
+
+    /**
+     * InstanceReaper 扫描时同时在途的读请求数, 默认64
+     */
+    public static int getReaperMaxInflight() {
+        return reaperMaxInflight;
+    }
+
+    /**
+     * InstanceReaper 每秒最多删除的实例数, 0 不限制, 默认500
+     */
+    public static int getReaperDeletesPerSec() {
+        return reaperDeletesPerSec;
+    }
+
+    /**
+     * PERMANENT 实例注册超过这个时间算失效, 0 不按时间判断, 默认0
+     */
+    public static long getReaperMaxAgeMs() {
+        return reaperMaxAgeMs;
+    }
+
+    /**
+     * 探测实例端口的超时时间, 0 不探测, 默认0
+     */
+    public static long getReaperProbeTimeoutMs() {
+        return reaperProbeTimeoutMs;
+    }
+
+    /**
+     * 是否删除 owner 会话已不存在的临时节点, 默认false
+     */
+    public static boolean isReaperOwnerCheck() {
+        return reaperOwnerCheck;
+    }
+
+    /**
+     * 集群中会话超时的上限, 创建时间在此之内的临时节点不做 owner 判断, 默认40000(tickTime 2000 时的 maxSessionTimeout)
+     */
+    public static long getReaperSessionTimeoutMs() {
+        return reaperSessionTimeoutMs;
+    }
+
+    /**
+     * catalogMode=true 时 DiscoveryClientUtil 每个 base path 只用一个 ServiceCatalog 监听全部服务, 适合订阅大量服务的进程; 默认false
+     */
+    public static boolean isCatalogMode() {
+        return catalogMode;
+    }
+
     private static void load() {
         Properties prop = PropertyUtil.load("zoo.properties");
         address = prop.getProperty("address");
         kafkaPort = prop.getProperty("kafkaPort");
+        sessionIdleMs = getLong(prop, "sessionIdleMs", 60000L);
+        snapshotDir = prop.getProperty("snapshotDir");
+        snapshotMaxStaleMs = getLong(prop, "snapshotMaxStaleMs", 24 * 3600 * 1000L);
+        maxCachedServices = getLong(prop, "maxCachedServices", 1024L);
+        serviceIdleMs = getLong(prop, "serviceIdleMs", 30 * 60 * 1000L);
+        binarySerializer = "binary".equalsIgnoreCase(prop.getProperty("serializer"));
+        outlierConsecutiveErrors = (int) getLong(prop, "outlierConsecutiveErrors", 5);
+        outlierEjectionMs = getLong(prop, "outlierEjectionMs", 30000L);
+        outlierMaxEjectionPercent = (int) getLong(prop, "outlierMaxEjectionPercent", 50);
+        eventWindowMs = getLong(prop, "eventWindowMs", 100L);
+        zone = prop.getProperty("zone");
+        if (zone != null && zone.trim().length() == 0) {
+            zone = null;
+        }
+        zoneMinHealthy = (int) getLong(prop, "zoneMinHealthy", 1);
+        zoneMinHealthyPercent = (int) getLong(prop, "zoneMinHealthyPercent", 50);
+        ensembles = loadEnsembles(prop);
+        deterministicId = "true".equalsIgnoreCase(prop.getProperty("deterministicId"));
+        deltaBufferSize = (int) getLong(prop, "deltaBufferSize", 16);
+        loadReportIntervalMs = getLong(prop, "loadReportIntervalMs", 1000L);
+        loadReportMinChangePercent = (int) getLong(prop, "loadReportMinChangePercent", 10);
+        loadReportFleetWritesPerSec = (int) getLong(prop, "loadReportFleetWritesPerSec", 100);
+        hedgePercentile = (int) getLong(prop, "hedgePercentile", 95);
+        hedgeBudgetPercent = (int) getLong(prop, "hedgeBudgetPercent", 5);
+        hedgeDefaultDelayMs = getLong(prop, "hedgeDefaultDelayMs", 50L);
+        reaperParallelism = (int) getLong(prop, "reaperParallelism", 4);
+        reaperMaxInflight = (int) getLong(prop, "reaperMaxInflight", 64);
+        reaperDeletesPerSec = (int) getLong(prop, "reaperDeletesPerSec", 500);
+        reaperMaxAgeMs = getLong(prop, "reaperMaxAgeMs", 0L);
+        reaperProbeTimeoutMs = getLong(prop, "reaperProbeTimeoutMs", 0L);
+        reaperOwnerCheck = "true".equalsIgnoreCase(prop.getProperty("reaperOwnerCheck"));
+        reaperSessionTimeoutMs = getLong(prop, "reaperSessionTimeoutMs", 40000L);
+        catalogMode = "true".equalsIgnoreCase(prop.getProperty("catalogMode"));
         prop.clear();
         prop = null;
     }
 
+    private static Map<String, String> loadEnsembles(Properties prop) {
+        Map<String, String> sorted = new TreeMap<String, String>();
+        for (String key : prop.stringPropertyNames()) {
+            String value = prop.getProperty(key);
+            if (key.startsWith(ENSEMBLE_PREFIX) && key.length() > ENSEMBLE_PREFIX.length() && value != null && value.trim().length() > 0) {
+                sorted.put(key.substring(ENSEMBLE_PREFIX.length()), value.trim());
+            }
+        }
+        return ImmutableMap.copyOf(sorted);
+    }
+
+    private static long getLong(Properties prop, String key, long def) {
+        String value = prop.getProperty(key);
+        if (value == null || value.trim().length() == 0) {
+            return def;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return def;
+        }
+    }
+
 }
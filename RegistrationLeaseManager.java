@@ -0,0 +1,274 @@
+package com.sohu.smc.common.zk;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.netflix.curator.framework.CuratorFramework;
+import com.netflix.curator.framework.state.ConnectionState;
+import com.netflix.curator.framework.state.ConnectionStateListener;
+import com.netflix.curator.x.discovery.ServiceInstance;
+import com.netflix.curator.x.discovery.ServiceType;
+import com.sohu.smc.common.zk.metrics.DiscoveryMetrics;
+import com.sohu.smc.common.zk.metrics.MetricsExporter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 本进程注册的全部实例共用一个会话引用, 有注册实例时持有, 全部注销后释放.
+ * <p/>
+ * 会话过期(LOST)后重新连上时, 用 multi 事务批量重建全部 DYNAMIC 实例的临时节点, PERSISTENT 节点不受会话影响.
+ * 导出的指标: 会话数、注册实例数、实例序列化后的字节数(按实例平均), 重注册耗时见 DiscoveryMetrics.reregister.
+ * User: shijinkui
+ */
+public class RegistrationLeaseManager implements ConnectionStateListener {
+
+    private static final Logger log = LoggerFactory.getLogger(RegistrationLeaseManager.class.getName());
+
+    private static final long RETRY_MIN_BACKOFF_MS = 500;
+    private static final long RETRY_MAX_BACKOFF_MS = 30000;
+
+    private static final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "zk-reregister");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private final DiscoveryServiceUtil owner;
+    private final String connectString;
+    private final DiscoveryMetrics.GaugeSource gauges;
+
+    /**
+     * instance id -> 注册的实例
+     */
+    private final ConcurrentMap<String, Registration> registrations = Maps.newConcurrentMap();
+    private final AtomicLong bytes = new AtomicLong(0);
+    private final AtomicBoolean reregistering = new AtomicBoolean(false);
+    private volatile boolean expired = false;
+    private volatile boolean draining = false;
+
+    /**
+     * 有注册实例时不为null, 由 this 保护
+     */
+    private SessionPool.Lease lease;
+
+    RegistrationLeaseManager(DiscoveryServiceUtil owner, String connectString) {
+        this.owner = owner;
+        this.connectString = connectString;
+        final String suffix = owner.getBasePath();
+        this.gauges = new DiscoveryMetrics.GaugeSource() {
+            @Override
+            public void collect(MetricsExporter exporter) {
+                int count = registrations.size();
+                exporter.gauge("zk-sessions", SessionPool.getInstance().size());
+                exporter.gauge("zk-registered-instances-" + suffix, count);
+                exporter.gauge("zk-registered-bytes-per-instance-" + suffix, count == 0 ? 0 : bytes.get() / count);
+            }
+        };
+        DiscoveryMetrics.getInstance().addGaugeSource(gauges);
+    }
+
+    /**
+     * 实例注册成功后调用
+     *
+     * @param instance
+     * @param size     实例序列化后的字节数
+     * @throws Exception
+     */
+    synchronized void add(ServiceInstance<String> instance, int size) throws Exception {
+        if (lease == null) {
+            lease = SessionPool.getInstance().acquire(connectString, owner.getBasePath());
+            lease.client().getConnectionStateListenable().addListener(this);
+        }
+        Registration old = registrations.put(instance.getId(), new Registration(instance, size));
+        bytes.addAndGet(old == null ? size : size - old.size);
+    }
+
+    /**
+     * 实例数据改写后调用, 只替换仍然注册着的实例
+     *
+     * @param instance
+     * @param size
+     */
+    synchronized void replace(ServiceInstance<String> instance, int size) {
+        Registration old = registrations.get(instance.getId());
+        if (old != null) {
+            registrations.put(instance.getId(), new Registration(instance, size));
+            bytes.addAndGet(size - old.size);
+        }
+    }
+
+    /**
+     * 实例注销成功后调用, 最后一个实例注销时释放会话引用
+     *
+     * @param id
+     */
+    synchronized void remove(String id) {
+        Registration old = registrations.remove(id);
+        if (old != null) {
+            bytes.addAndGet(-old.size);
+        }
+        if (registrations.isEmpty() && lease != null) {
+            lease.client().getConnectionStateListenable().removeListener(this);
+            lease.close();
+            lease = null;
+        }
+    }
+
+    /**
+     * 移除监控项并释放会话引用, 不再重注册; 不注销已注册的实例, 需要下线时先调用 DiscoveryServiceUtil.drain
+     */
+    synchronized void close() {
+        draining = true;
+        DiscoveryMetrics.getInstance().removeGaugeSource(gauges);
+        registrations.clear();
+        bytes.set(0);
+        if (lease != null) {
+            lease.client().getConnectionStateListenable().removeListener(this);
+            lease.close();
+            lease = null;
+        }
+    }
+
+    public Collection<ServiceInstance<String>> getInstances() {
+        List<ServiceInstance<String>> list = Lists.newArrayListWithCapacity(registrations.size());
+        for (Registration registration : registrations.values()) {
+            list.add(registration.instance);
+        }
+        return list;
+    }
+
+    /**
+     * 本进程注册的某个实例, 没有时返回null
+     */
+    public ServiceInstance<String> get(String id) {
+        Registration registration = registrations.get(id);
+        return registration == null ? null : registration.instance;
+    }
+
+    /**
+     * 按 name/address/port 找本进程注册的实例, 没有时返回null
+     */
+    public ServiceInstance<String> find(String name, String address, int port) {
+        for (Registration registration : registrations.values()) {
+            ServiceInstance<String> instance = registration.instance;
+            if (instance.getName().equals(name) && address.equals(instance.getAddress()) && instance.getPort() != null && instance.getPort() == port) {
+                return instance;
+            }
+        }
+        return null;
+    }
+
+    public int size() {
+        return registrations.size();
+    }
+
+    /**
+     * 注册实例序列化后的总字节数
+     */
+    public long bytes() {
+        return bytes.get();
+    }
+
+    public boolean isDraining() {
+        return draining;
+    }
+
+    void setDraining(boolean draining) {
+        this.draining = draining;
+    }
+
+    @Override
+    public void stateChanged(CuratorFramework client, ConnectionState newState) {
+        switch (newState) {
+            case LOST:
+                //curator also raises LOST when its retries run out while the session is still alive,
+                //re-registering then finds the nodes of this session and counts them as registered
+                expired = true;
+                break;
+            case RECONNECTED:
+                if (expired && reregistering.compareAndSet(false, true)) {
+                    executor.execute(new ReregisterTask(client, RETRY_MIN_BACKOFF_MS));
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private class ReregisterTask implements Runnable {
+        private final CuratorFramework client;
+        private final long backoffMs;
+
+        private ReregisterTask(CuratorFramework client, long backoffMs) {
+            this.client = client;
+            this.backoffMs = backoffMs;
+        }
+
+        @Override
+        public void run() {
+            expired = false;
+            try {
+                reregister(client);
+                reregistering.set(false);
+                if (expired && reregistering.compareAndSet(false, true)) {
+                    //lost again while re-registering
+                    executor.schedule(new ReregisterTask(client, RETRY_MIN_BACKOFF_MS), RETRY_MIN_BACKOFF_MS, TimeUnit.MILLISECONDS);
+                }
+            } catch (Exception e) {
+                log.error("re-register instances err, retry in " + backoffMs + "ms.", e);
+                expired = true;
+                executor.schedule(new ReregisterTask(client, Math.min(backoffMs * 2, RETRY_MAX_BACKOFF_MS)), backoffMs, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private void reregister(CuratorFramework client) throws Exception {
+        if (draining) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        List<ServiceInstance<String>> dynamic = Lists.newArrayList();
+        for (Registration registration : registrations.values()) {
+            if (registration.instance.getServiceType() == ServiceType.DYNAMIC) {
+                dynamic.add(registration.instance);
+            }
+        }
+        if (dynamic.isEmpty()) {
+            return;
+        }
+
+        Map<ServiceInstance<String>, Boolean> result = owner.recreate(client, dynamic);
+        int created = 0;
+        for (Boolean ok : result.values()) {
+            if (ok) {
+                created++;
+            }
+        }
+        DiscoveryMetrics.getInstance().reregister().recordSince(start);
+        log.warn("re-register " + created + "/" + dynamic.size() + " instances after session expired in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms.");
+    }
+
+    private static final class Registration {
+        private final ServiceInstance<String> instance;
+        private final int size;
+
+        private Registration(ServiceInstance<String> instance, int size) {
+            this.instance = instance;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,575 @@
+package com.sohu.smc.common.zk;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.netflix.curator.framework.CuratorFramework;
+import com.netflix.curator.framework.api.BackgroundCallback;
+import com.netflix.curator.framework.api.CuratorEvent;
+import com.netflix.curator.framework.api.CuratorWatcher;
+import com.netflix.curator.framework.state.ConnectionState;
+import com.netflix.curator.framework.state.ConnectionStateListener;
+import com.netflix.curator.utils.ZKPaths;
+import com.netflix.curator.x.discovery.ServiceInstance;
+import com.netflix.curator.x.discovery.details.InstanceSerializer;
+import com.sohu.smc.common.zk.metrics.DiscoveryMetrics;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 整个 base path 的服务目录: 一个 watcher 对象和一个事件线程维护全部服务, 代替每个服务名一个 ServiceCache.
+ * <p/>
+ * base path 的子节点, 每个服务的子节点和每个实例节点的数据都用同一个 CuratorWatcher 监听,
+ * 事件按服务名合并后在目录线程中增量刷新: 只读取新增和数据变化的实例, 实例数据读取用 background 请求流水线发出.
+ * 全部服务的快照放在一个不可变的 name -> ServiceSnapshot map 中, 变化时复制替换, 查询不加锁.
+ * 会话过期(LOST 后 RECONNECTED)时 watch 已经丢失, 重新读取全部数据. 读取失败的服务列表和服务按指数退避重试, 直到成功并重新设置 watch.
+ * <pre>
+ *     ServiceCatalog catalog = ServiceCatalog.open(PropertyConfig.getZookeeperAddress(), "/smc");
+ *     ServiceInstance&lt;String&gt; instance = catalog.getService("logmerge");
+ * </pre>
+ * User: shijinkui
+ */
+public class ServiceCatalog implements CuratorWatcher, ConnectionStateListener, Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(ServiceCatalog.class.getName());
+
+    /**
+     * base path 子节点变化的合并 key
+     */
+    private static final String ROOT = "";
+    private static final long READ_TIMEOUT_MS = 30000;
+    private static final long RETRY_MIN_BACKOFF_MS = 500;
+    private static final long RETRY_MAX_BACKOFF_MS = 30000;
+
+    /**
+     * 服务快照变化的回调, 在目录线程中调用
+     */
+    public interface Listener {
+        /**
+         * @param name
+         * @param snapshot 服务被删除时为 ServiceSnapshot.EMPTY
+         */
+        void serviceChanged(String name, ServiceSnapshot snapshot);
+    }
+
+    private final CuratorFramework client;
+    private final SessionPool.Lease lease;
+    private final String basePath;
+    private final String prefix;
+    private final Listener listener;
+    private final InstanceSerializer<String> serializer = CompactInstanceSerializer.fromConfig();
+    private final ScheduledExecutorService executor;
+    private final EventCoalescer<String> coalescer;
+
+    /**
+     * service name -> 数据变化的实例id
+     */
+    private final ConcurrentMap<String, Set<String>> dirty = Maps.newConcurrentMap();
+
+    /**
+     * service name -> (instance id -> instance), 只在目录线程中访问
+     */
+    private final Map<String, Map<String, ServiceInstance<String>>> nodes = Maps.newHashMap();
+
+    /**
+     * 全量刷新时先写在这里, 结束后一次替换; 只在目录线程中访问
+     */
+    private Map<String, ServiceSnapshot> staging;
+    private final List<String> stagedNames = Lists.newArrayList();
+
+    /**
+     * 等待重试的合并 key -> 下次的退避时间, 只在目录线程中访问
+     */
+    private final Map<String, Long> backoffs = Maps.newHashMap();
+
+    private volatile ImmutableMap<String, ServiceSnapshot> services = ImmutableMap.of();
+    private volatile boolean expired = false;
+    private volatile boolean closed = false;
+
+    private ServiceCatalog(CuratorFramework client, SessionPool.Lease lease, final String basePath, Listener listener) {
+        this.client = client;
+        this.lease = lease;
+        this.basePath = basePath;
+        this.prefix = basePath.endsWith("/") ? basePath : basePath + "/";
+        this.listener = listener;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "zk-catalog-" + basePath);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        this.coalescer = new EventCoalescer<String>(PropertyConfig.getEventWindowMs(), new EventCoalescer.Handler<String>() {
+            @Override
+            public void flush(final String key, int events) {
+                submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        refresh(key);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * 在会话池的会话上建立目录, close 时释放会话引用
+     */
+    public static ServiceCatalog open(String connectString, String basePath) throws Exception {
+        SessionPool.Lease lease = SessionPool.getInstance().acquire(connectString, basePath);
+        try {
+            return start(new ServiceCatalog(lease.client(), lease, basePath, null));
+        } catch (Exception e) {
+            lease.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 在已经 start 的连接上建立目录, 完成第一次全量读取后返回; 第一次读取有任何失败时抛出异常
+     *
+     * @param client
+     * @param basePath
+     * @param listener 可以为null
+     */
+    public static ServiceCatalog open(CuratorFramework client, String basePath, Listener listener) throws Exception {
+        return start(new ServiceCatalog(client, null, basePath, listener));
+    }
+
+    private static ServiceCatalog start(final ServiceCatalog catalog) throws Exception {
+        catalog.client.getConnectionStateListenable().addListener(catalog);
+        try {
+            boolean loaded = catalog.executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return catalog.reload();
+                }
+            }).get();
+            if (!loaded) {
+                throw new IllegalStateException("load service catalog failed, base path: " + catalog.basePath);
+            }
+            return catalog;
+        } catch (Exception e) {
+            catalog.close();
+            throw e;
+        }
+    }
+
+    public String getBasePath() {
+        return basePath;
+    }
+
+    /**
+     * 全部服务名
+     */
+    public Set<String> getServiceNames() {
+        return services.keySet();
+    }
+
+    /**
+     * 全部服务的快照, 不可变
+     */
+    public Map<String, ServiceSnapshot> getServices() {
+        return services;
+    }
+
+    public ServiceSnapshot getSnapshot(String serviceName) {
+        ServiceSnapshot snapshot = services.get(serviceName);
+        return snapshot == null ? ServiceSnapshot.EMPTY : snapshot;
+    }
+
+    /**
+     * 随机选一个实例, 没有实例时返回null; 需要选择策略和摘除时用 catalogMode 的 DiscoveryClientUtil
+     */
+    public ServiceInstance<String> getService(String serviceName) {
+        ServiceSnapshot snapshot = getSnapshot(serviceName);
+        int size = snapshot.size();
+        return size == 0 ? null : snapshot.get(ThreadLocalRandom.current().nextInt(size));
+    }
+
+    public List<ServiceInstance<String>> getAllService(String serviceName) {
+        return getSnapshot(serviceName).asList();
+    }
+
+    @Override
+    public void process(WatchedEvent event) throws Exception {
+        if (closed || event.getType() == Watcher.Event.EventType.None || event.getPath() == null) {
+            return;
+        }
+        DiscoveryMetrics.getInstance().watchEvents().incr();
+
+        String path = event.getPath();
+        if (path.equals(basePath)) {
+            coalescer.submit(ROOT);
+            return;
+        }
+        if (!path.startsWith(prefix)) {
+            return;
+        }
+
+        String relative = path.substring(prefix.length());
+        int slash = relative.indexOf('/');
+        if (slash < 0) {
+            coalescer.submit(relative);
+            return;
+        }
+
+        String name = relative.substring(0, slash);
+        switch (event.getType()) {
+            case NodeDataChanged:
+            case NodeDeleted:
+            case NodeCreated:
+                //a node deleted and re-created with the same id inside one window must be read again to get its data and a new watch
+                dirtyOf(name).add(relative.substring(slash + 1));
+                break;
+            default:
+                break;
+        }
+        coalescer.submit(name);
+    }
+
+    @Override
+    public void stateChanged(CuratorFramework client, ConnectionState newState) {
+        switch (newState) {
+            case LOST:
+                expired = true;
+                break;
+
+            case RECONNECTED:
+                if (expired) {
+                    submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            reload();
+                        }
+                    });
+                }
+                break;
+
+            default:
+                break;
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        client.getConnectionStateListenable().removeListener(this);
+        executor.shutdownNow();
+        if (lease != null) {
+            lease.close();
+        }
+    }
+
+    private void submit(Runnable task) {
+        if (closed) {
+            return;
+        }
+        try {
+            executor.execute(task);
+        } catch (Exception e) {
+            log.warn("catalog " + basePath + " closed, drop task.");
+        }
+    }
+
+    private Set<String> dirtyOf(String name) {
+        Set<String> ids = dirty.get(name);
+        if (ids == null) {
+            Set<String> created = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            ids = dirty.putIfAbsent(name, created);
+            if (ids == null) {
+                ids = created;
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * 刷新服务列表(ROOT)或一个服务, 失败时退避重试
+     */
+    private void refresh(String key) {
+        boolean ok = ROOT.equals(key) ? refreshNames(false) : refreshService(key);
+        if (ok) {
+            backoffs.remove(key);
+        } else {
+            retry(key);
+        }
+    }
+
+    private void retry(final String key) {
+        Long last = backoffs.get(key);
+        long delay = last == null ? RETRY_MIN_BACKOFF_MS : Math.min(last * 2, RETRY_MAX_BACKOFF_MS);
+        backoffs.put(key, delay);
+        if (closed) {
+            return;
+        }
+        try {
+            executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    //a later event may already have refreshed it
+                    if (backoffs.containsKey(key)) {
+                        refresh(key);
+                    }
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            log.warn("catalog " + basePath + " closed, drop retry.");
+        }
+    }
+
+    /**
+     * 全量读取, 结果一次替换; 会话过期后原有的 watch 都已丢失, 全部实例重新读取并重新 watch
+     *
+     * @return 是否全部读取成功, 失败的部分已经安排重试
+     */
+    private boolean reload() {
+        if (expired) {
+            expired = false;
+            nodes.clear();
+        }
+
+        long start = System.nanoTime();
+        staging = Maps.newHashMap(services);
+        boolean ok;
+        try {
+            ok = refreshNames(true);
+        } finally {
+            services = ImmutableMap.copyOf(staging);
+            staging = null;
+        }
+
+        for (String name : stagedNames) {
+            notify(name, getSnapshot(name));
+        }
+        stagedNames.clear();
+        if (!ok) {
+            retry(ROOT);
+        }
+        log.info("catalog " + basePath + " loaded " + services.size() + " services in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms, ok: " + ok);
+        return ok && backoffs.isEmpty();
+    }
+
+    /**
+     * @param all 是否刷新全部服务, 否则只读取新出现的服务
+     * @return 服务列表是否读取成功; 读取失败的服务各自安排重试
+     */
+    private boolean refreshNames(boolean all) {
+        List<String> names;
+        try {
+            names = client.getChildren().usingWatcher(this).forPath(basePath);
+        } catch (KeeperException.NoNodeException e) {
+            names = Collections.emptyList();
+            if (!watchCreation()) {
+                return false;
+            }
+        } catch (Exception e) {
+            log.error("list services err, base path: " + basePath, e);
+            return false;
+        }
+
+        Set<String> current = Sets.newHashSet(names);
+        for (String name : names) {
+            if (all || !nodes.containsKey(name)) {
+                if (refreshService(name)) {
+                    backoffs.remove(name);
+                } else {
+                    retry(name);
+                }
+            }
+        }
+        for (String name : Lists.newArrayList(nodes.keySet())) {
+            if (!current.contains(name)) {
+                nodes.remove(name);
+                publish(name, null);
+            }
+        }
+        return true;
+    }
+
+    private boolean watchCreation() {
+        try {
+            if (client.checkExists().usingWatcher(this).forPath(basePath) != null) {
+                coalescer.submit(ROOT);
+            }
+            return true;
+        } catch (Exception e) {
+            log.error("watch base path err: " + basePath, e);
+            return false;
+        }
+    }
+
+    /**
+     * @return 是否读取成功并重新设置了 watch
+     */
+    private boolean refreshService(String name) {
+        String servicePath = ZKPaths.makePath(basePath, name);
+        List<String> ids;
+        try {
+            ids = client.getChildren().usingWatcher(this).forPath(servicePath);
+        } catch (KeeperException.NoNodeException e) {
+            dirty.remove(name);
+            if (nodes.remove(name) != null) {
+                publish(name, null);
+            }
+            return true;
+        } catch (Exception e) {
+            log.error("list instances err, service: " + servicePath, e);
+            return false;
+        }
+
+        Map<String, ServiceInstance<String>> known = nodes.get(name);
+        if (known == null) {
+            known = Collections.emptyMap();
+        }
+        Set<String> changed = dirty.remove(name);
+        List<String> toRead = Lists.newArrayList();
+        for (String id : ids) {
+            if (!known.containsKey(id) || (changed != null && changed.contains(id))) {
+                toRead.add(id);
+            }
+        }
+
+        Set<String> failed = Sets.newHashSet();
+        Map<String, ServiceInstance<String>> read = read(servicePath, toRead, failed);
+        Map<String, ServiceInstance<String>> next = Maps.newHashMapWithExpectedSize(ids.size());
+        for (String id : ids) {
+            ServiceInstance<String> instance = read.get(id);
+            if (instance == null) {
+                //deleted or unreadable since the listing, keep what we had
+                instance = known.get(id);
+            }
+            if (instance != null) {
+                next.put(id, instance);
+            }
+        }
+
+        boolean isNew = !nodes.containsKey(name);
+        nodes.put(name, next);
+        if (isNew || !read.isEmpty() || next.size() != known.size()) {
+            publish(name, new ServiceSnapshot(next.values()));
+        }
+        if (!failed.isEmpty()) {
+            //read them again on the retry, the data watch may not be set
+            dirtyOf(name).addAll(failed);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 并发读取实例数据并设置数据 watch, 等全部回调后返回
+     *
+     * @param failed 读取出错或超时的实例id, 不含已删除和无法解析的
+     */
+    private Map<String, ServiceInstance<String>> read(String servicePath, Collection<String> ids, final Set<String> failed) {
+        if (ids.isEmpty()) {
+            return Collections.emptyMap();
+        }
+
+        final ConcurrentMap<String, ServiceInstance<String>> result = Maps.newConcurrentMap();
+        final Set<String> done = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        final CountDownLatch latch = new CountDownLatch(ids.size());
+        for (final String id : ids) {
+            final String path = ZKPaths.makePath(servicePath, id);
+            try {
+                client.getData().usingWatcher(this).inBackground(new BackgroundCallback() {
+                    @Override
+                    public void processResult(CuratorFramework client, CuratorEvent event) throws Exception {
+                        try {
+                            if (event.getResultCode() == KeeperException.Code.OK.intValue()) {
+                                done.add(id);
+                                result.put(id, serializer.deserialize(event.getData()));
+                            } else if (event.getResultCode() == KeeperException.Code.NONODE.intValue()) {
+                                done.add(id);
+                            } else {
+                                log.warn("read instance falure: " + path + ", code " + event.getResultCode());
+                            }
+                        } catch (Exception e) {
+                            //the watch is set, a rewrite of the node triggers another read
+                            log.warn("unreadable instance: " + path + ", " + e.getMessage());
+                        } finally {
+                            latch.countDown();
+                        }
+                    }
+                }).forPath(path);
+            } catch (Exception e) {
+                log.warn("read instance err: " + path + ", " + e.getMessage());
+                latch.countDown();
+            }
+        }
+
+        try {
+            if (!latch.await(READ_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                log.warn("read instances timeout: " + servicePath);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (String id : ids) {
+            if (!done.contains(id)) {
+                failed.add(id);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param snapshot 服务被删除时为null
+     */
+    private void publish(String name, ServiceSnapshot snapshot) {
+        if (staging != null) {
+            if (snapshot == null) {
+                staging.remove(name);
+            } else {
+                staging.put(name, snapshot);
+            }
+            stagedNames.add(name);
+            return;
+        }
+
+        ImmutableMap.Builder<String, ServiceSnapshot> builder = ImmutableMap.builder();
+        for (Map.Entry<String, ServiceSnapshot> e : services.entrySet()) {
+            if (!e.getKey().equals(name)) {
+                builder.put(e);
+            }
+        }
+        if (snapshot != null) {
+            builder.put(name, snapshot);
+        }
+        services = builder.build();
+        notify(name, snapshot == null ? ServiceSnapshot.EMPTY : snapshot);
+    }
+
+    private void notify(String name, ServiceSnapshot snapshot) {
+        if (listener == null) {
+            return;
+        }
+        try {
+            listener.serviceChanged(name, snapshot);
+        } catch (Exception e) {
+            log.error("catalog listener err, service: " + name, e);
+        }
+    }
+}
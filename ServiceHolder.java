@@ -0,0 +1,378 @@
+package com.sohu.smc.common.zk;
+
+import com.google.common.io.Closeables;
+import com.netflix.curator.framework.CuratorFramework;
+import com.netflix.curator.framework.state.ConnectionState;
+import com.netflix.curator.x.discovery.ServiceCache;
+import com.netflix.curator.x.discovery.ServiceInstance;
+import com.netflix.curator.x.discovery.details.ServiceCacheListener;
+import com.sohu.smc.common.zk.metrics.DiscoveryMetrics;
+import com.sohu.smc.common.zk.strategy.ConsistentHashStrategy;
+import com.sohu.smc.common.zk.strategy.SelectStrategy;
+import com.sohu.smc.common.zk.strategy.StrategyType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 单个服务的 ServiceCache 与实例快照; catalogMode 下不建 ServiceCache, 快照取自 ServiceCatalog.
+ * <p/>
+ * cacheChanged 时重建快照并整体替换, 同时通知选择策略预先构建选择数据, 查询路径上只读不写锁.
+ * 还没有连上zk时可以用本地快照文件中的实例先行服务, 见 SnapshotStore.
+ * 快照变化通过 DeltaPublisher 以 delta 的形式推给订阅者.
+ * 配置了本机 zone 时优先选本 zone 的实例, 本 zone 健康实例数低于阈值时改选其他 zone, 两组实例各有一个选择策略.
+ * User: shijinkui
+ */
+public class ServiceHolder implements ServiceCacheListener, Closeable {
+
+    private final Logger log = LoggerFactory.getLogger(ServiceHolder.class.getName());
+
+    /**
+     * 选中被摘除的实例时重新选择的次数, 都被摘除时仍返回最后一次的结果
+     */
+    private static final int SELECT_RETRIES = 3;
+
+    /**
+     * 本 zone 健康实例数的检查间隔
+     */
+    private static final long ZONE_CHECK_INTERVAL_MS = 1000;
+
+    private static final EventCoalescer<ServiceHolder> coalescer = new EventCoalescer<ServiceHolder>(PropertyConfig.getEventWindowMs(), new EventCoalescer.Handler<ServiceHolder>() {
+        @Override
+        public void flush(ServiceHolder holder, int events) {
+            holder.refresh();
+            holder.log.info("service[" + holder.name + "] instances changed, size:" + holder.snapshot.size() + ", events:" + events);
+        }
+    });
+
+    private final String basePath;
+    private final String name;
+    private final SnapshotStore store;
+    private volatile ServiceCache<String> cache;
+    private volatile ServiceCatalog catalog;
+    private volatile ServiceSnapshot snapshot = ServiceSnapshot.EMPTY;
+    private final OutlierDetector detector;
+    private final DeltaPublisher publisher;
+
+    private final String localZone = PropertyConfig.getZone();
+    private volatile ServiceSnapshot localPartition = ServiceSnapshot.EMPTY;
+    private volatile int remoteSize = 0;
+    private volatile boolean preferLocal = false;
+    private final AtomicLong nextZoneCheck = new AtomicLong(0);
+
+    /**
+     * 用本地快照服务时快照的过期时间, 绑定zk数据后为0
+     */
+    private volatile long seedExpiresAt = 0;
+
+    /**
+     * 上次清理以来是否被查询过; 查询线程先读后写, 已经标记时不再写
+     */
+    private volatile boolean accessed = true;
+    /**
+     * 最近一次被查询的时间, 精度为一个清理周期; 只由清理线程读写
+     */
+    private long lastAccess = System.currentTimeMillis();
+
+    /**
+     * local 只含本 zone 的实例; remote 含其他实例, 没有配置本机 zone 时含全部实例
+     */
+    private volatile SelectStrategy local;
+    private volatile SelectStrategy remote;
+
+    /**
+     * @param basePath
+     * @param name
+     * @param type
+     * @param store    本地快照, 可以为null
+     */
+    public ServiceHolder(String basePath, String name, StrategyType type, SnapshotStore store) {
+        this.basePath = basePath;
+        this.name = name;
+        this.local = type.create();
+        this.remote = type.create();
+        this.store = store;
+        this.detector = new OutlierDetector(name);
+        this.publisher = new DeltaPublisher(name);
+    }
+
+    /**
+     * 记录一次查询, 见 DiscoveryClientUtil 的空闲清理
+     */
+    void touch() {
+        if (!accessed) {
+            accessed = true;
+        }
+    }
+
+    /**
+     * 清理线程调用, 把上个周期的查询折算成访问时间
+     *
+     * @return 最近一次被查询的时间
+     */
+    long sweepAccess(long now) {
+        if (accessed) {
+            accessed = false;
+            lastAccess = now;
+        }
+        return lastAccess;
+    }
+
+    long getLastAccess() {
+        return lastAccess;
+    }
+
+    public String getBasePath() {
+        return basePath;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public ServiceSnapshot getSnapshot() {
+        checkSeed();
+        return snapshot;
+    }
+
+    /**
+     * 按当前策略选择一个实例, 跳过被摘除的实例; 没有实例时返回null
+     *
+     * @param key 请求key, 可以为null
+     * @return
+     */
+    public ServiceInstance<String> select(String key) {
+        checkSeed();
+        if (localZone != null) {
+            long now = System.currentTimeMillis();
+            long next = nextZoneCheck.get();
+            if (now >= next && nextZoneCheck.compareAndSet(next, now + ZONE_CHECK_INTERVAL_MS)) {
+                checkZone();
+            }
+        }
+
+        SelectStrategy current = preferLocal ? local : remote;
+        ServiceInstance<String> instance = select(current, key);
+        if (instance == null && current == local) {
+            instance = select(remote, key);
+        }
+        return instance;
+    }
+
+    private ServiceInstance<String> select(SelectStrategy current, String key) {
+        if (key != null && current instanceof ConsistentHashStrategy) {
+            //reselecting with the same key lands on the same ejected node, walk the ring instead
+            return ((ConsistentHashStrategy) current).select(key, detector);
+        }
+        ServiceInstance<String> instance = current.select(key);
+        for (int i = 0; i < SELECT_RETRIES && instance != null && detector.isEjected(instance); i++) {
+            current.release(instance);
+            instance = current.select(key);
+        }
+        return instance;
+    }
+
+    /**
+     * 本 zone 健康实例数不低于 zoneMinHealthy 且不低于本 zone 实例数的 zoneMinHealthyPercent 时优先本 zone;
+     * 其他 zone 没有实例时总是用本 zone
+     */
+    private void checkZone() {
+        ServiceSnapshot partition = localPartition;
+        int healthy = 0;
+        for (int i = 0; i < partition.size(); i++) {
+            if (!detector.isEjected(partition.get(i))) {
+                healthy++;
+            }
+        }
+
+        int threshold = Math.max(PropertyConfig.getZoneMinHealthy(), (partition.size() * PropertyConfig.getZoneMinHealthyPercent() + 99) / 100);
+        boolean prefer = partition.size() > 0 && (healthy >= threshold || remoteSize == 0);
+        if (prefer != preferLocal) {
+            log.warn("service[" + name + "] " + (prefer ? "route to local zone " : "fall back from local zone ") + localZone + ", healthy:" + healthy + "/" + partition.size());
+        }
+        preferLocal = prefer;
+    }
+
+    /**
+     * 请求结果反馈, 用于摘除异常实例
+     *
+     * @param instance
+     * @param success
+     * @param latencyMicros
+     */
+    public void report(ServiceInstance<String> instance, boolean success, long latencyMicros) {
+        detector.report(instance, success, latencyMicros);
+    }
+
+    /**
+     * 当前优先的 zone, 没有配置本机 zone 或已改选其他 zone 时为null
+     */
+    public String getPreferredZone() {
+        return preferLocal ? localZone : null;
+    }
+
+    public OutlierDetector getDetector() {
+        return detector;
+    }
+
+    /**
+     * 实例变化的订阅入口
+     */
+    public DeltaPublisher getPublisher() {
+        return publisher;
+    }
+
+    /**
+     * 两组实例不相交, 只有包含该实例的策略会计数
+     */
+    public void release(ServiceInstance<String> instance) {
+        local.release(instance);
+        remote.release(instance);
+    }
+
+    public synchronized void setStrategy(StrategyType type) {
+        SelectStrategy newLocal = type.create();
+        SelectStrategy newRemote = type.create();
+        newLocal.update(localPartition);
+        newRemote.update(localZone == null ? snapshot : snapshot.excluding(localZone));
+        local = newLocal;
+        remote = newRemote;
+    }
+
+    /**
+     * 用本地快照文件中的实例初始化, 只在还没有从zk得到数据时生效
+     *
+     * @return 是否有可用的本地快照
+     */
+    public synchronized boolean seed() {
+        if (store == null || isAttached()) {
+            return false;
+        }
+        List<ServiceInstance<String>> instances = store.get(name);
+        long expiresAt = store.expiresAt(name);
+        if (instances == null || expiresAt == 0) {
+            return false;
+        }
+        update(new ServiceSnapshot(instances));
+        seedExpiresAt = expiresAt;
+        log.info("service[" + name + "] serve " + instances.size() + " instances from local snapshot.");
+        return true;
+    }
+
+    /**
+     * 一直没有连上zk时, 本地快照超过 snapshotMaxStaleMs 后不再使用
+     */
+    private void checkSeed() {
+        long expiresAt = seedExpiresAt;
+        if (expiresAt != 0 && System.currentTimeMillis() > expiresAt) {
+            expireSeed(expiresAt);
+        }
+    }
+
+    private synchronized void expireSeed(long expiresAt) {
+        if (seedExpiresAt != expiresAt) {
+            return;
+        }
+        seedExpiresAt = 0;
+        update(ServiceSnapshot.EMPTY);
+        DiscoveryMetrics.getInstance().expiredSnapshots().incr();
+        log.warn("service[" + name + "] local snapshot expired before zk came back, stop serving it.");
+    }
+
+    /**
+     * 绑定已经 start 的 ServiceCache 并立即刷新
+     *
+     * @param started
+     * @return 原来绑定的 ServiceCache, 由调用方关闭
+     */
+    public synchronized ServiceCache<String> attach(ServiceCache<String> started) {
+        seedExpiresAt = 0;
+        ServiceCache<String> old = this.cache;
+        this.cache = started;
+        refresh();
+        return old;
+    }
+
+    /**
+     * 改为从服务目录取快照并立即刷新, 目录中该服务变化时由目录的 listener 调用 refresh
+     *
+     * @param catalog
+     * @return 原来绑定的 ServiceCache, 由调用方关闭
+     */
+    public synchronized ServiceCache<String> attach(ServiceCatalog catalog) {
+        seedExpiresAt = 0;
+        ServiceCache<String> old = this.cache;
+        this.cache = null;
+        this.catalog = catalog;
+        refresh();
+        return old;
+    }
+
+    /**
+     * 解除绑定, 保留当前快照继续服务
+     *
+     * @return 原来绑定的 ServiceCache, 由调用方关闭
+     */
+    public synchronized ServiceCache<String> detach() {
+        ServiceCache<String> old = this.cache;
+        this.cache = null;
+        this.catalog = null;
+        return old;
+    }
+
+    public boolean isAttached() {
+        return cache != null || catalog != null;
+    }
+
+    public synchronized void refresh() {
+        ServiceCatalog currentCatalog = catalog;
+        ServiceCache<String> current = cache;
+        if (currentCatalog != null) {
+            //the catalog snapshot is immutable and can be shared as is
+            update(currentCatalog.getSnapshot(name));
+        } else if (current != null) {
+            update(new ServiceSnapshot(current.getInstances()));
+        } else {
+            return;
+        }
+        if (store != null) {
+            store.saveLater(name, snapshot);
+        }
+    }
+
+    private void update(ServiceSnapshot current) {
+        detector.update(current);
+        ServiceSnapshot others = localZone == null ? current : current.excluding(localZone);
+        localPartition = current.partition(localZone);
+        remoteSize = others.size();
+        local.update(localPartition);
+        remote.update(others);
+        snapshot = current;
+        publisher.publish(current);
+        if (localZone != null) {
+            checkZone();
+        }
+    }
+
+    @Override
+    public void cacheChanged() {
+        DiscoveryMetrics.getInstance().watchEvents().incr();
+        coalescer.submit(this);
+    }
+
+    @Override
+    public void stateChanged(CuratorFramework client, ConnectionState newState) {
+    }
+
+    @Override
+    public void close() {
+        publisher.close();
+        ServiceCache<String> current = cache;
+        if (current != null) {
+            Closeables.closeQuietly(current);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.sohu.smc.common.zk;
+
+import com.netflix.curator.utils.ZKPaths;
+
+/**
+ * (basePath, serviceName), 客户端缓存的 key, hash 预先算好
+ * User: shijinkui
+ */
+final class ServiceKey {
+
+    private final String basePath;
+    private final String name;
+    private final int hash;
+
+    ServiceKey(String basePath, String name) {
+        this.basePath = basePath;
+        this.name = name;
+        this.hash = 31 * basePath.hashCode() + name.hashCode();
+    }
+
+    String getBasePath() {
+        return basePath;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ServiceKey)) {
+            return false;
+        }
+        ServiceKey other = (ServiceKey) o;
+        return hash == other.hash && name.equals(other.name) && basePath.equals(other.basePath);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return ZKPaths.makePath(basePath, name);
+    }
+}
@@ -0,0 +1,150 @@
+package com.sohu.smc.common.zk;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.netflix.curator.x.discovery.ServiceInstance;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 某个服务在某一时刻的实例快照, 构建后不可变.
+ * <p/>
+ * 只在 cacheChanged 时重新构建, 查询路径上直接读数组, 不做任何拷贝.
+ * 构建时按 payload 中的 zone 属性预先分好区, 没有 zone 的实例只出现在整体快照中; 负载分数也在构建时算好.
+ * User: shijinkui
+ */
+public final class ServiceSnapshot {
+
+    public static final ServiceSnapshot EMPTY = new ServiceSnapshot(Collections.<ServiceInstance<String>>emptyList());
+
+    private final ServiceInstance<String>[] instances;
+    private final String[] zones;
+    private final double[] loads;
+    private final List<ServiceInstance<String>> view;
+    private final Map<String, ServiceSnapshot> partitions;
+
+    public ServiceSnapshot(Collection<ServiceInstance<String>> list) {
+        this(list, true);
+    }
+
+    @SuppressWarnings("unchecked")
+    private ServiceSnapshot(Collection<ServiceInstance<String>> list, boolean partition) {
+        this.instances = list.toArray(new ServiceInstance[list.size()]);
+        this.view = Collections.unmodifiableList(Arrays.asList(instances));
+        this.zones = new String[instances.length];
+        this.loads = new double[instances.length];
+        for (int i = 0; i < instances.length; i++) {
+            Map<String, String> attrs = InstancePayload.parse(instances[i].getPayload());
+            zones[i] = attrs.get(InstancePayload.ZONE);
+            loads[i] = InstancePayload.loadScore(attrs);
+        }
+        fillUnreported(loads);
+        this.partitions = partition ? buildPartitions() : ImmutableMap.<String, ServiceSnapshot>of();
+    }
+
+    /**
+     * 没有上报负载的实例取上报实例负载的中位数, 既不会被当作最空闲而涌入请求, 也不会被饿死; 都没有上报时为1
+     */
+    private static void fillUnreported(double[] loads) {
+        double[] reported = new double[loads.length];
+        int count = 0;
+        for (double load : loads) {
+            if (!Double.isNaN(load)) {
+                reported[count++] = load;
+            }
+        }
+        if (count == loads.length) {
+            return;
+        }
+
+        double neutral = 1;
+        if (count > 0) {
+            Arrays.sort(reported, 0, count);
+            neutral = reported[count / 2];
+        }
+        for (int i = 0; i < loads.length; i++) {
+            if (Double.isNaN(loads[i])) {
+                loads[i] = neutral;
+            }
+        }
+    }
+
+    public int size() {
+        return instances.length;
+    }
+
+    public ServiceInstance<String> get(int index) {
+        return instances[index];
+    }
+
+    /**
+     * 实例所在的 zone, 注册时没有带 zone 时为null
+     */
+    public String zoneOf(int index) {
+        return zones[index];
+    }
+
+    /**
+     * 实例上报的负载分数, 见 InstancePayload.loadScore
+     */
+    public double loadOf(int index) {
+        return loads[index];
+    }
+
+    /**
+     * 只读视图, 与快照共享同一数组
+     */
+    public List<ServiceInstance<String>> asList() {
+        return view;
+    }
+
+    /**
+     * 某个 zone 的实例, 没有时返回 EMPTY
+     */
+    public ServiceSnapshot partition(String zone) {
+        ServiceSnapshot ret = zone == null ? null : partitions.get(zone);
+        return ret == null ? EMPTY : ret;
+    }
+
+    /**
+     * 不在某个 zone 的全部实例(含没有 zone 的实例), 每次调用都会重新构建
+     */
+    public ServiceSnapshot excluding(String zone) {
+        if (zone == null || !partitions.containsKey(zone)) {
+            return this;
+        }
+        List<ServiceInstance<String>> list = Lists.newArrayListWithCapacity(instances.length);
+        for (int i = 0; i < instances.length; i++) {
+            if (!zone.equals(zones[i])) {
+                list.add(instances[i]);
+            }
+        }
+        return new ServiceSnapshot(list, false);
+    }
+
+    private Map<String, ServiceSnapshot> buildPartitions() {
+        Map<String, List<ServiceInstance<String>>> byZone = Maps.newHashMap();
+        for (int i = 0; i < instances.length; i++) {
+            if (zones[i] == null) {
+                continue;
+            }
+            List<ServiceInstance<String>> list = byZone.get(zones[i]);
+            if (list == null) {
+                list = Lists.newArrayList();
+                byZone.put(zones[i], list);
+            }
+            list.add(instances[i]);
+        }
+
+        ImmutableMap.Builder<String, ServiceSnapshot> builder = ImmutableMap.builder();
+        for (Map.Entry<String, List<ServiceInstance<String>>> e : byZone.entrySet()) {
+            builder.put(e.getKey(), new ServiceSnapshot(e.getValue(), false));
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,250 @@
+package com.sohu.smc.common.zk;
+
+import com.google.common.collect.Maps;
+import com.google.common.io.Closeables;
+import com.netflix.curator.framework.CuratorFramework;
+import com.netflix.curator.framework.CuratorFrameworkFactory;
+import com.netflix.curator.retry.RetryNTimes;
+import com.netflix.curator.x.discovery.ServiceDiscovery;
+import com.netflix.curator.x.discovery.ServiceDiscoveryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * zk会话池, 按 connectString + basePath 共享长连接的 CuratorFramework 和 ServiceDiscovery.
+ * <p/>
+ * 每次 acquire 增加一次引用, Lease.close() 释放引用; 引用为0且空闲超过 sessionIdleMs 的会话由后台线程关闭.
+ * <pre>
+ *     SessionPool.Lease lease = SessionPool.getInstance().acquire(address, basePath);
+ *     try {
+ *         lease.discovery().queryForInstances(name);
+ *     } finally {
+ *         lease.close();
+ *     }
+ * </pre>
+ * User: shijinkui
+ */
+public class SessionPool {
+
+    private static final Logger log = LoggerFactory.getLogger(SessionPool.class.getName());
+
+    private static final SessionPool pool = new SessionPool(PropertyConfig.getSessionIdleMs());
+
+    private final ConcurrentMap<String, Entry> entries = Maps.newConcurrentMap();
+    private final long idleTimeoutMs;
+    private final ScheduledExecutorService evictor;
+    private volatile boolean shutdown = false;
+
+    public SessionPool(long idleTimeoutMs) {
+        this.idleTimeoutMs = idleTimeoutMs;
+        this.evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "zk-session-evictor");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        long period = Math.max(idleTimeoutMs / 2, 1000L);
+        evictor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                evictIdle();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+
+        Runtime.getRuntime().addShutdownHook(new Thread("zk-session-pool-shutdown") {
+            @Override
+            public void run() {
+                shutdown();
+            }
+        });
+    }
+
+    public static SessionPool getInstance() {
+        return pool;
+    }
+
+    /**
+     * 获取一个会话引用, 使用完必须 close
+     *
+     * @param connectString
+     * @param basePath
+     * @return
+     * @throws Exception
+     */
+    public Lease acquire(String connectString, String basePath) throws Exception {
+        if (shutdown) {
+            throw new IllegalStateException("session pool has been shutdown.");
+        }
+
+        String key = connectString + "|" + basePath;
+        while (true) {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                Entry created = new Entry(connectString, basePath);
+                entry = entries.putIfAbsent(key, created);
+                if (entry == null) {
+                    entry = created;
+                }
+            }
+
+            if (entry.retain()) {
+                try {
+                    entry.start();
+                } catch (Exception e) {
+                    entry.release();
+                    throw e;
+                }
+                return new Lease(entry);
+            }
+
+            //the entry was evicted between get and retain
+            entries.remove(key, entry);
+        }
+    }
+
+    /**
+     * 当前池中的会话数
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * 关闭池中全部会话, 不论是否还有引用
+     */
+    public void shutdown() {
+        if (shutdown) {
+            return;
+        }
+        shutdown = true;
+        evictor.shutdownNow();
+
+        for (Entry entry : entries.values()) {
+            entry.close();
+        }
+        entries.clear();
+    }
+
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Entry> e = it.next();
+            Entry entry = e.getValue();
+            if (now - entry.lastReleased >= idleTimeoutMs && entry.markClosed()) {
+                it.remove();
+                entry.close();
+                log.info("evict idle zk session: " + e.getKey());
+            }
+        }
+    }
+
+    private static class Entry {
+        private final String connectString;
+        private final String basePath;
+
+        /**
+         * -1 表示已关闭, 不可再引用
+         */
+        private final AtomicInteger refs = new AtomicInteger(0);
+        private volatile long lastReleased = System.currentTimeMillis();
+
+        private CuratorFramework client;
+        private ServiceDiscovery<String> discovery;
+        private volatile boolean started = false;
+
+        private Entry(String connectString, String basePath) {
+            this.connectString = connectString;
+            this.basePath = basePath;
+        }
+
+        private boolean retain() {
+            while (true) {
+                int current = refs.get();
+                if (current < 0) {
+                    return false;
+                }
+                if (refs.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        private void release() {
+            lastReleased = System.currentTimeMillis();
+            refs.decrementAndGet();
+        }
+
+        private boolean markClosed() {
+            return refs.compareAndSet(0, -1);
+        }
+
+        private synchronized void start() throws Exception {
+            if (started) {
+                return;
+            }
+
+            client = CuratorFrameworkFactory.newClient(connectString, new RetryNTimes(3, 20));
+            client.start();
+            discovery = ServiceDiscoveryBuilder.builder(String.class).basePath(basePath).serializer(CompactInstanceSerializer.fromConfig()).client(client).build();
+            try {
+                discovery.start();
+            } catch (Exception e) {
+                Closeables.closeQuietly(discovery);
+                Closeables.closeQuietly(client);
+                throw e;
+            }
+            started = true;
+            log.info("build a new pooled zk session: " + connectString + "|" + basePath);
+        }
+
+        private synchronized void close() {
+            refs.set(-1);
+            if (!started) {
+                return;
+            }
+            started = false;
+            Closeables.closeQuietly(discovery);
+            Closeables.closeQuietly(client);
+        }
+    }
+
+    /**
+     * 会话引用, close 后不可再使用
+     */
+    public static class Lease implements Closeable {
+        private final Entry entry;
+        private final AtomicInteger closed = new AtomicInteger(0);
+
+        private Lease(Entry entry) {
+            this.entry = entry;
+        }
+
+        public CuratorFramework client() {
+            return entry.client;
+        }
+
+        public ServiceDiscovery<String> discovery() {
+            return entry.discovery;
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(0, 1)) {
+                entry.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,333 @@
+package com.sohu.smc.common.zk;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Closeables;
+import com.netflix.curator.x.discovery.ServiceInstance;
+import com.netflix.curator.x.discovery.details.InstanceSerializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * 服务实例的本地快照文件, zk不可用或尚未返回时用它路由.
+ * <p/>
+ * 每次 cacheChanged 在文件尾追加一条记录, 同名服务以最后一条为准; 文件超过 COMPACT_SIZE 且大于有效记录两倍时重写为只含最新记录.
+ * 启动时用内存映射一次性读入, 超过 snapshotMaxStaleMs 的记录丢弃; 记录时间表示快照最后一次确认和zk一致的时间,
+ * 连接可用时由 touch 定期刷新, 没有变化的服务不会因此过期.
+ * <pre>
+ * record := length(int) time(long) name(utf) count(int) { size(int) serialized-instance(bytes) }*
+ * </pre>
+ * User: shijinkui
+ */
+public class SnapshotStore {
+
+    private static final Logger log = LoggerFactory.getLogger(SnapshotStore.class.getName());
+
+    private static final long COMPACT_SIZE = 4 * 1024 * 1024;
+
+    private static final ExecutorService writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "zk-snapshot-writer");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private final File file;
+    private final long maxStaleMs;
+    private final InstanceSerializer<String> serializer = new CompactInstanceSerializer(true);
+
+    /**
+     * 最新记录, name -> 记录字节(不含长度头)
+     */
+    private final Map<String, byte[]> latest = Maps.newHashMap();
+    private final Map<String, Entry> loaded = Maps.newConcurrentMap();
+    /**
+     * 等待后台写入的快照, 同一服务只保留最新的
+     */
+    private final ConcurrentMap<String, ServiceSnapshot> unsaved = Maps.newConcurrentMap();
+    private RandomAccessFile out;
+
+    private SnapshotStore(File file, long maxStaleMs) {
+        this.file = file;
+        this.maxStaleMs = maxStaleMs;
+    }
+
+    /**
+     * 打开 base path 对应的快照文件, 没有配置 snapshotDir 时返回null
+     *
+     * @param basePath
+     * @return
+     */
+    public static SnapshotStore open(String basePath) {
+        return open(basePath, null);
+    }
+
+    /**
+     * 打开某个 zk 集群上 base path 对应的快照文件, 多个集群的快照互不覆盖
+     *
+     * @param basePath
+     * @param ensemble 集群名, 可以为null
+     * @return
+     */
+    public static SnapshotStore open(String basePath, String ensemble) {
+        String dir = PropertyConfig.getSnapshotDir();
+        if (dir == null || dir.trim().length() == 0) {
+            return null;
+        }
+
+        File parent = new File(dir.trim());
+        if (!parent.exists() && !parent.mkdirs()) {
+            log.error("can not create snapshot dir: " + parent);
+            return null;
+        }
+
+        String fileName = basePath.replaceAll("^/+", "").replace('/', '_') + ".snapshot";
+        if (ensemble != null) {
+            fileName = ensemble + "_" + fileName;
+        }
+        SnapshotStore store = new SnapshotStore(new File(parent, fileName), PropertyConfig.getSnapshotMaxStaleMs());
+        store.load();
+        return store;
+    }
+
+    /**
+     * 启动时加载的某个服务的实例, 没有或已过期时返回null
+     *
+     * @param serviceName
+     * @return
+     */
+    public List<ServiceInstance<String>> get(String serviceName) {
+        Entry entry = loaded.get(serviceName);
+        if (entry == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() - entry.time > maxStaleMs) {
+            loaded.remove(serviceName);
+            return null;
+        }
+        return entry.instances;
+    }
+
+    /**
+     * 启动时加载的某个服务的快照过期的时间, 没有时返回0
+     */
+    public long expiresAt(String serviceName) {
+        Entry entry = loaded.get(serviceName);
+        return entry == null ? 0 : entry.time + maxStaleMs;
+    }
+
+    /**
+     * 启动时加载到的服务名
+     */
+    public Set<String> names() {
+        return ImmutableSet.copyOf(loaded.keySet());
+    }
+
+    /**
+     * 在后台线程追加一条服务快照, 调用线程不做文件 I/O
+     *
+     * @param serviceName
+     * @param snapshot
+     */
+    public void saveLater(final String serviceName, ServiceSnapshot snapshot) {
+        if (unsaved.put(serviceName, snapshot) != null) {
+            //the queued write picks up the newer snapshot
+            return;
+        }
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                ServiceSnapshot latest = unsaved.remove(serviceName);
+                if (latest != null) {
+                    save(serviceName, latest);
+                }
+            }
+        });
+    }
+
+    /**
+     * 追加一条服务快照
+     *
+     * @param serviceName
+     * @param snapshot
+     */
+    public synchronized void save(String serviceName, ServiceSnapshot snapshot) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(bytes);
+            data.writeLong(System.currentTimeMillis());
+            data.writeUTF(serviceName);
+            data.writeInt(snapshot.size());
+            for (int i = 0; i < snapshot.size(); i++) {
+                byte[] instance = serializer.serialize(snapshot.get(i));
+                data.writeInt(instance.length);
+                data.write(instance);
+            }
+            data.flush();
+            byte[] record = bytes.toByteArray();
+            latest.put(serviceName, record);
+
+            if (out == null) {
+                out = new RandomAccessFile(file, "rw");
+            }
+            long live = 0;
+            for (byte[] r : latest.values()) {
+                live += 4 + r.length;
+            }
+            if (out.length() + record.length > Math.max(COMPACT_SIZE, live * 2)) {
+                compact();
+            } else {
+                append(out, record);
+            }
+        } catch (Exception e) {
+            log.error("save snapshot err, service: " + serviceName, e);
+        }
+    }
+
+    /**
+     * 刷新仍然和zk同步的服务的记录时间, 删除已经没有服务缓存的记录, 然后重写文件; 只在连接可用时调用
+     *
+     * @param current 已绑定zk数据的服务, 记录时间改为现在
+     * @param live    仍有服务缓存的服务, 其余服务的记录删除
+     */
+    public synchronized void touch(Set<String> current, Set<String> live) {
+        if (latest.isEmpty()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, byte[]>> it = latest.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, byte[]> e = it.next();
+            if (!live.contains(e.getKey())) {
+                it.remove();
+            } else if (current.contains(e.getKey())) {
+                //the record starts with its time
+                ByteBuffer.wrap(e.getValue()).putLong(0, now);
+            }
+        }
+        try {
+            compact();
+        } catch (Exception e) {
+            log.error("touch snapshot err, file: " + file, e);
+        }
+    }
+
+    public synchronized void close() {
+        for (String serviceName : unsaved.keySet()) {
+            ServiceSnapshot latest = unsaved.remove(serviceName);
+            if (latest != null) {
+                save(serviceName, latest);
+            }
+        }
+        Closeables.closeQuietly(out);
+        out = null;
+    }
+
+    private void append(RandomAccessFile target, byte[] record) throws IOException {
+        FileChannel channel = target.getChannel();
+        ByteBuffer buffer = ByteBuffer.allocate(4 + record.length);
+        buffer.putInt(record.length).put(record).flip();
+        channel.position(channel.size());
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private void compact() throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        RandomAccessFile rewrite = new RandomAccessFile(tmp, "rw");
+        try {
+            rewrite.setLength(0);
+            for (byte[] record : latest.values()) {
+                append(rewrite, record);
+            }
+            rewrite.getChannel().force(false);
+        } finally {
+            Closeables.closeQuietly(rewrite);
+        }
+
+        Closeables.closeQuietly(out);
+        if (!tmp.renameTo(file)) {
+            throw new IOException("rename " + tmp + " to " + file + " failed.");
+        }
+        out = new RandomAccessFile(file, "rw");
+    }
+
+    private void load() {
+        if (!file.exists() || file.length() == 0) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        RandomAccessFile in = null;
+        try {
+            in = new RandomAccessFile(file, "r");
+            MappedByteBuffer buffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+            while (buffer.remaining() >= 4) {
+                int length = buffer.getInt();
+                if (length <= 0 || length > buffer.remaining()) {
+                    //truncated tail written by a crashed process
+                    break;
+                }
+                byte[] record = new byte[length];
+                buffer.get(record);
+
+                DataInputStream data = new DataInputStream(new ByteArrayInputStream(record));
+                long time = data.readLong();
+                String name = data.readUTF();
+                latest.put(name, record);
+                if (now - time > maxStaleMs) {
+                    loaded.remove(name);
+                    continue;
+                }
+
+                int count = data.readInt();
+                List<ServiceInstance<String>> instances = Lists.newArrayListWithCapacity(count);
+                for (int i = 0; i < count; i++) {
+                    byte[] instance = new byte[data.readInt()];
+                    data.readFully(instance);
+                    instances.add(serializer.deserialize(instance));
+                }
+                loaded.put(name, new Entry(time, Collections.unmodifiableList(instances)));
+            }
+            log.info("load " + loaded.size() + " service snapshots from " + file);
+        } catch (Exception e) {
+            log.error("load snapshot err, file: " + file, e);
+        } finally {
+            Closeables.closeQuietly(in);
+        }
+    }
+
+    private static class Entry {
+        private final long time;
+        private final List<ServiceInstance<String>> instances;
+
+        private Entry(long time, List<ServiceInstance<String>> instances) {
+            this.time = time;
+            this.instances = instances;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.sohu.smc.common.zk;
+
+import com.netflix.curator.x.discovery.ServiceInstance;
+
+/**
+ * 带来源 zk 集群名的服务实例, FederatedDiscoveryClient 合并多个集群时使用
+ * User: shijinkui
+ */
+public final class SourcedInstance {
+
+    private final String source;
+    private final ServiceInstance<String> instance;
+
+    public SourcedInstance(String source, ServiceInstance<String> instance) {
+        this.source = source;
+        this.instance = instance;
+    }
+
+    /**
+     * 实例所在的集群名, 见 PropertyConfig.getEnsembles
+     */
+    public String getSource() {
+        return source;
+    }
+
+    public ServiceInstance<String> getInstance() {
+        return instance;
+    }
+
+    @Override
+    public String toString() {
+        return source + ":" + instance;
+    }
+}
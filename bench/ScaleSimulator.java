@@ -0,0 +1,346 @@
+package com.sohu.smc.common.zk.bench;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Closeables;
+import com.netflix.curator.x.discovery.ServiceInstance;
+import com.netflix.curator.x.discovery.ServiceType;
+import com.sohu.smc.common.zk.DiscoveryClientUtil;
+import com.sohu.smc.common.zk.DiscoveryServiceUtil;
+import com.sohu.smc.common.zk.InstanceDelta;
+import com.sohu.smc.common.zk.PropertyConfig;
+import com.sohu.smc.common.zk.flow.Subscriber;
+import com.sohu.smc.common.zk.flow.Subscription;
+import com.sohu.smc.common.zk.metrics.DiscoveryMetrics;
+import com.sohu.smc.common.zk.metrics.LatencyHistogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 规模压测: 在 zoo.properties 配置的 zk 上注册 services x instances 个实例, 多线程并发 getService/getAllService,
+ * 同时按 churnPerSec 不断注销/注册实例, 最后以 key=value 每行一项输出结果, 便于不同版本之间对比.
+ * <p/>
+ * 输出: 注册吞吐, 预热耗时, lookup 延迟百分位和吞吐, 变更从注册到客户端收到 delta 的延迟百分位,
+ * 堆使用, 线程数, watch 事件数, 以及服务端 mntr 的 zk_packets_received 增量(服务端禁用四字命令时为-1).
+ * mode=catalog 时客户端用 ServiceCatalog, 与默认的 mode=cache(每个服务名一个 ServiceCache)对比.
+ * <pre>
+ *     java com.sohu.smc.common.zk.bench.ScaleSimulator services=1000 instances=20 churnPerSec=50 durationSec=60 threads=16 mode=catalog
+ * </pre>
+ * 只应该指向测试集群, 结束时注销全部模拟实例.
+ * User: shijinkui
+ */
+public final class ScaleSimulator {
+
+    private static final Logger log = LoggerFactory.getLogger(ScaleSimulator.class.getName());
+
+    private final String basePath;
+    private final int services;
+    private final int instances;
+    private final int churnPerSec;
+    private final int durationSec;
+    private final int threads;
+    private final boolean catalogMode;
+
+    private final Map<String, Object> results = Maps.newLinkedHashMap();
+    private final LatencyHistogram getService = new LatencyHistogram("getService");
+    private final LatencyHistogram getAllService = new LatencyHistogram("getAllService");
+    private final LatencyHistogram visibility = new LatencyHistogram("visibility");
+    private final List<String> names = Lists.newArrayList();
+
+    public ScaleSimulator(String basePath, int services, int instances, int churnPerSec, int durationSec, int threads, boolean catalogMode) {
+        this.basePath = basePath;
+        this.services = services;
+        this.instances = instances;
+        this.churnPerSec = churnPerSec;
+        this.durationSec = durationSec;
+        this.threads = threads;
+        this.catalogMode = catalogMode;
+        for (int i = 0; i < services; i++) {
+            names.add("sim-service-" + i);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> conf = Maps.newHashMap();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq > 0) {
+                conf.put(arg.substring(0, eq), arg.substring(eq + 1));
+            }
+        }
+
+        ScaleSimulator simulator = new ScaleSimulator(get(conf, "basePath", "/zk-scale-sim"), getInt(conf, "services", 100),
+                getInt(conf, "instances", 10), getInt(conf, "churnPerSec", 10), getInt(conf, "durationSec", 30), getInt(conf, "threads", 8),
+                "catalog".equalsIgnoreCase(get(conf, "mode", "cache")));
+        for (Map.Entry<String, Object> e : simulator.run().entrySet()) {
+            System.out.println(e.getKey() + "=" + e.getValue());
+        }
+        System.exit(0);
+    }
+
+    public Map<String, Object> run() throws Exception {
+        results.put("services", services);
+        results.put("instances", instances);
+        results.put("churn_per_sec", churnPerSec);
+        results.put("duration_sec", durationSec);
+        results.put("threads", threads);
+        results.put("mode", catalogMode ? "catalog" : "cache");
+
+        long heapBase = usedHeap();
+        long packetsBase = zkPacketsReceived();
+        long watchBase = DiscoveryMetrics.getInstance().watchEvents().get();
+
+        DiscoveryServiceUtil serviceUtil = new DiscoveryServiceUtil(ServiceType.DYNAMIC, basePath);
+        ExecutorService pool = Executors.newFixedThreadPool(threads + 1);
+        DiscoveryClientUtil client = null;
+        try {
+            register(serviceUtil);
+            //only the client's own threads count, the pool and the registering session exist in both modes
+            ((ThreadPoolExecutor) pool).prestartAllCoreThreads();
+            int threadsBase = ManagementFactory.getThreadMXBean().getThreadCount();
+
+            client = new DiscoveryClientUtil(basePath, "sim", PropertyConfig.getZookeeperAddress(), catalogMode);
+            client.rebuildConnection(basePath);
+            long start = System.nanoTime();
+            client.prefetch(names, pool).get();
+            results.put("prefetch_ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            results.put("heap_cached_bytes", usedHeap() - heapBase);
+            results.put("threads_added", ManagementFactory.getThreadMXBean().getThreadCount() - threadsBase);
+
+            for (String name : names) {
+                client.subscribe(name, new LagSubscriber());
+            }
+
+            drive(client, serviceUtil, pool);
+
+            results.put("heap_end_bytes", usedHeap() - heapBase);
+            results.put("watch_events", DiscoveryMetrics.getInstance().watchEvents().get() - watchBase);
+            long packets = zkPacketsReceived();
+            results.put("zk_packets_received", packets < 0 || packetsBase < 0 ? -1 : packets - packetsBase);
+        } finally {
+            if (client != null) {
+                client.close();
+            }
+            serviceUtil.drain(0);
+            pool.shutdownNow();
+        }
+        return results;
+    }
+
+    private void register(DiscoveryServiceUtil serviceUtil) throws Exception {
+        List<ServiceInstance<String>> list = Lists.newArrayListWithCapacity(services * instances);
+        for (String name : names) {
+            for (int i = 0; i < instances; i++) {
+                list.add(instance(name, i));
+            }
+        }
+
+        long start = System.nanoTime();
+        int ok = 0;
+        for (Boolean registered : serviceUtil.registAll(list).values()) {
+            if (registered) {
+                ok++;
+            }
+        }
+        long ms = Math.max(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), 1);
+        results.put("register_count", ok);
+        results.put("register_ms", ms);
+        results.put("register_per_sec", ok * 1000L / ms);
+    }
+
+    private void drive(final DiscoveryClientUtil client, final DiscoveryServiceUtil serviceUtil, ExecutorService pool) throws Exception {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(durationSec);
+        final AtomicLong lookups = new AtomicLong(0);
+        final AtomicLong misses = new AtomicLong(0);
+        final AtomicLong churned = new AtomicLong(0);
+        final CountDownLatch done = new CountDownLatch(threads + 1);
+
+        for (int t = 0; t < threads; t++) {
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    long count = 0;
+                    try {
+                        while (System.nanoTime() < deadline) {
+                            String name = names.get(random.nextInt(names.size()));
+                            long start = System.nanoTime();
+                            if ((count & 7) == 0) {
+                                if (client.getAllService(name) == null) {
+                                    misses.incrementAndGet();
+                                }
+                                getAllService.recordSince(start);
+                            } else {
+                                if (client.getService(name) == null) {
+                                    misses.incrementAndGet();
+                                }
+                                getService.recordSince(start);
+                            }
+                            count++;
+                        }
+                    } finally {
+                        lookups.addAndGet(count);
+                        done.countDown();
+                    }
+                }
+            });
+        }
+
+        pool.execute(new Runnable() {
+            @Override
+            public void run() {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long intervalNanos = churnPerSec <= 0 ? Long.MAX_VALUE : TimeUnit.SECONDS.toNanos(1) / churnPerSec;
+                long next = System.nanoTime();
+                int seq = instances;
+                try {
+                    while (System.nanoTime() < deadline && churnPerSec > 0) {
+                        List<ServiceInstance<String>> registered = Lists.newArrayList(serviceUtil.getLeaseManager().getInstances());
+                        if (!registered.isEmpty()) {
+                            ServiceInstance<String> victim = registered.get(random.nextInt(registered.size()));
+                            serviceUtil.removeAll(Collections.singletonList(victim));
+                            serviceUtil.registAll(Collections.singletonList(instance(victim.getName(), seq++)));
+                            churned.incrementAndGet();
+                        }
+                        next += intervalNanos;
+                        long sleep = next - System.nanoTime();
+                        if (sleep > 0) {
+                            TimeUnit.NANOSECONDS.sleep(sleep);
+                        }
+                    }
+                } catch (Exception e) {
+                    log.error("churn thread err,", e);
+                } finally {
+                    done.countDown();
+                }
+            }
+        });
+
+        done.await();
+        //let the last changes reach the subscribers
+        TimeUnit.MILLISECONDS.sleep(Math.max(PropertyConfig.getEventWindowMs() * 2, 500));
+
+        results.put("lookup_count", lookups.get());
+        results.put("lookup_per_sec", lookups.get() / Math.max(durationSec, 1));
+        results.put("lookup_null", misses.get());
+        results.put("churn_count", churned.get());
+        put("get_service_us", getService.snapshot());
+        put("get_all_service_us", getAllService.snapshot());
+        put("visibility_lag_us", visibility.snapshot());
+    }
+
+    private void put(String prefix, LatencyHistogram.Snapshot snapshot) {
+        results.put(prefix + ".count", snapshot.getCount());
+        results.put(prefix + ".mean", (long) snapshot.getMean());
+        results.put(prefix + ".p50", snapshot.getPercentile(50));
+        results.put(prefix + ".p90", snapshot.getPercentile(90));
+        results.put(prefix + ".p99", snapshot.getPercentile(99));
+        results.put(prefix + ".p999", snapshot.getPercentile(99.9));
+        results.put(prefix + ".max", snapshot.getMax());
+    }
+
+    private ServiceInstance<String> instance(String name, int seq) throws Exception {
+        return ServiceInstance.<String>builder().name(name).address("10.255." + (seq / 250 % 250) + "." + (seq % 250)).port(20000 + seq % 40000)
+                .payload("sim").serviceType(ServiceType.DYNAMIC).build();
+    }
+
+    /**
+     * 注册时间到客户端收到 delta 的延迟, 只统计订阅后的变化
+     */
+    private class LagSubscriber implements Subscriber<InstanceDelta> {
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(InstanceDelta delta) {
+            if (delta.getFromVersion() == 0) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            for (ServiceInstance<String> instance : delta.getAdded()) {
+                visibility.recordMicros(Math.max(now - instance.getRegistrationTimeUTC(), 0) * 1000);
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            log.error("delta subscriber err,", throwable);
+        }
+
+        @Override
+        public void onComplete() {
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * 第一个 zk 服务端的 zk_packets_received, 取不到时返回-1
+     */
+    private static long zkPacketsReceived() {
+        String first = PropertyConfig.getZookeeperAddress().split(",")[0].trim();
+        int slash = first.indexOf('/');
+        if (slash >= 0) {
+            first = first.substring(0, slash);
+        }
+        int colon = first.lastIndexOf(':');
+        String host = colon > 0 ? first.substring(0, colon) : first;
+        int port = colon > 0 ? Integer.parseInt(first.substring(colon + 1)) : 2181;
+
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), 3000);
+            socket.setSoTimeout(3000);
+            OutputStream out = socket.getOutputStream();
+            out.write("mntr".getBytes(Charsets.US_ASCII));
+            out.flush();
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), Charsets.US_ASCII));
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith("zk_packets_received")) {
+                    return Long.parseLong(line.substring("zk_packets_received".length()).trim());
+                }
+            }
+        } catch (Exception e) {
+            //four letter words disabled or not reachable
+        } finally {
+            Closeables.closeQuietly(socket);
+        }
+        return -1;
+    }
+
+    private static String get(Map<String, String> conf, String key, String def) {
+        String value = conf.get(key);
+        return value == null ? def : value;
+    }
+
+    private static int getInt(Map<String, String> conf, String key, int def) {
+        return Integer.parseInt(get(conf, key, String.valueOf(def)));
+    }
+}
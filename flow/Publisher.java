@@ -0,0 +1,15 @@
+package com.sohu.smc.common.zk.flow;
+
+/**
+ * 与 java.util.concurrent.Flow.Publisher 同签名, 本项目还在 java7 上, 升级后可直接换成 Flow.
+ * User: shijinkui
+ */
+public interface Publisher<T> {
+
+    /**
+     * 订阅, 先回调 onSubscribe, 之后只在 request 的额度内回调 onNext
+     *
+     * @param subscriber
+     */
+    void subscribe(Subscriber<? super T> subscriber);
+}
@@ -0,0 +1,16 @@
+package com.sohu.smc.common.zk.flow;
+
+/**
+ * 与 java.util.concurrent.Flow.Subscriber 同签名, 同一个订阅的回调不会并发
+ * User: shijinkui
+ */
+public interface Subscriber<T> {
+
+    void onSubscribe(Subscription subscription);
+
+    void onNext(T item);
+
+    void onError(Throwable throwable);
+
+    void onComplete();
+}
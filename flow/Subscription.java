@@ -0,0 +1,17 @@
+package com.sohu.smc.common.zk.flow;
+
+/**
+ * 与 java.util.concurrent.Flow.Subscription 同签名
+ * User: shijinkui
+ */
+public interface Subscription {
+
+    /**
+     * 增加 n 个 onNext 的额度, n 必须为正, Long.MAX_VALUE 表示不限
+     *
+     * @param n
+     */
+    void request(long n);
+
+    void cancel();
+}
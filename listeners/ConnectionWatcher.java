@@ -17,10 +17,13 @@ import org.slf4j.LoggerFactory;
  */
 public class ConnectionWatcher implements ConnectionStateListener {
     private final Logger log = LoggerFactory.getLogger(ConnectionWatcher.class.getName());
-    private final String path;
+    private final DiscoveryClientUtil owner;
 
-    public ConnectionWatcher(String path) {
-        this.path = path;
+    /**
+     * @param owner 连接所属的客户端, LOST 时由它重连
+     */
+    public ConnectionWatcher(DiscoveryClientUtil owner) {
+        this.owner = owner;
     }
 
     @Override
@@ -28,7 +31,7 @@ public class ConnectionWatcher implements ConnectionStateListener {
         switch (newState) {
             case LOST:
                 //reconnect
-                DiscoveryClientUtil.getInstance(path).rebuildConnection(path);
+                owner.onConnectionLost(client);
                 Stats.incr("zk-connect-lost-to-reconnect");
                 log.warn("zk client connection lost, reconnect it.");
                 break;
@@ -3,6 +3,9 @@ package com.sohu.smc.common.zk.listeners;
 import com.netflix.curator.framework.CuratorFramework;
 import com.netflix.curator.framework.api.CuratorEvent;
 import com.netflix.curator.framework.api.CuratorListener;
+import com.sohu.smc.common.zk.EventCoalescer;
+import com.sohu.smc.common.zk.PropertyConfig;
+import com.sohu.smc.common.zk.metrics.DiscoveryMetrics;
 import com.twitter.ostrich.stats.Stats;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -16,6 +19,19 @@ import org.slf4j.LoggerFactory;
  */
 public class DataWatcher implements CuratorListener {
     private final Logger log = LoggerFactory.getLogger(DataWatcher.class.getName());
+    private volatile CuratorFramework client;
+
+    /**
+     * 同一路径在窗口内的变更只做一次 sync
+     */
+    private final EventCoalescer<String> coalescer = new EventCoalescer<String>(PropertyConfig.getEventWindowMs(), new EventCoalescer.Handler<String>() {
+        @Override
+        public void flush(String path, int events) throws Exception {
+            Stats.incr("service-" + path, events);
+            log.warn("service stat change:" + path + "|events:" + events);
+            client.sync(path, null);       //sync the server
+        }
+    });
 
     @Override
     public void eventReceived(CuratorFramework client, CuratorEvent event) throws Exception {
@@ -23,9 +39,9 @@ public class DataWatcher implements CuratorListener {
             case DELETE:
             case CREATE:
             case SET_DATA:
-                Stats.incr("service-" + event.getName());
-                log.warn("service stat change:" + event.getName() + "|path:" + event.getPath());
-                client.sync(event.getPath(), event.getContext());       //sync the server
+                DiscoveryMetrics.getInstance().curatorEvents().incr();
+                this.client = client;
+                coalescer.submit(event.getPath());
                 break;
 
             case CLOSING:
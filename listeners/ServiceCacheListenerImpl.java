@@ -18,23 +18,25 @@ import static com.netflix.curator.framework.state.ConnectionState.LOST;
  */
 public class ServiceCacheListenerImpl implements ServiceCacheListener {
     private final Logger log = LoggerFactory.getLogger(ServiceCacheListenerImpl.class.getName());
-    private final String path;
+    private final DiscoveryClientUtil owner;
 
-    public ServiceCacheListenerImpl(String path) {
-        this.path = path;
+    /**
+     * @param owner 连接所属的客户端, LOST 时由它重连
+     */
+    public ServiceCacheListenerImpl(DiscoveryClientUtil owner) {
+        this.owner = owner;
     }
 
 
     @Override
     public void cacheChanged() {
-        log.warn("cache changed...");
-        System.out.println(DiscoveryClientUtil.getInstance(path).getService("logmerge"));
+        log.debug("cache changed...");
     }
 
     @Override
     public void stateChanged(CuratorFramework client, ConnectionState newState) {
         if (newState == LOST) {
-            DiscoveryClientUtil.getInstance(path).rebuildConnection(path);
+            owner.onConnectionLost(client);
             log.error("connection state changed to:" + newState);
         }
     }
@@ -0,0 +1,220 @@
+package com.sohu.smc.common.zk.metrics;
+
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 服务发现的指标: lookup/regist/query/reconnect/reregister 延迟直方图, 缓存命中计数, watch 事件计数, 以及各服务实例数等 gauge.
+ * <p/>
+ * watch 事件按来源分开计数: watchEvents 是客户端服务缓存(ServiceCache/ServiceCatalog)收到的变化, indexEvents 是服务端 InstanceIndex 的,
+ * curatorEvents 是 DataWatcher 收到的 curator 后台事件.
+ * <p/>
+ * 记录都不分配内存. lookup 在请求路径上, 只对 1/(LOOKUP_SAMPLE_MASK+1) 的请求取时间, 命中计数每次都记.
+ * <pre>
+ *     DiscoveryMetrics.getInstance().startExport(new OstrichExporter(), 10000);
+ * </pre>
+ * User: shijinkui
+ */
+public final class DiscoveryMetrics {
+
+    private static final Logger log = LoggerFactory.getLogger(DiscoveryMetrics.class.getName());
+
+    private static final DiscoveryMetrics metrics = new DiscoveryMetrics();
+
+    private static final int LOOKUP_SAMPLE_MASK = 15;
+
+    private final LatencyHistogram lookup = new LatencyHistogram("zk-lookup");
+    private final LatencyHistogram register = new LatencyHistogram("zk-register");
+    private final LatencyHistogram query = new LatencyHistogram("zk-query");
+    private final LatencyHistogram reconnect = new LatencyHistogram("zk-reconnect");
+    private final LatencyHistogram reregister = new LatencyHistogram("zk-reregister");
+
+    private final StripedCounter cacheHit = new StripedCounter();
+    private final StripedCounter cacheMiss = new StripedCounter();
+    private final StripedCounter watchEvents = new StripedCounter();
+    private final StripedCounter indexEvents = new StripedCounter();
+    private final StripedCounter curatorEvents = new StripedCounter();
+    private final StripedCounter collapsedEvents = new StripedCounter();
+    private final StripedCounter eventBatches = new StripedCounter();
+    private final StripedCounter expiredSnapshots = new StripedCounter();
+
+    private final List<GaugeSource> gaugeSources = new CopyOnWriteArrayList<GaugeSource>();
+    private ScheduledExecutorService exporter;
+
+    private DiscoveryMetrics() {
+    }
+
+    public static DiscoveryMetrics getInstance() {
+        return metrics;
+    }
+
+    /**
+     * 采样开始, 未被采样时返回0
+     */
+    public long lookupStart() {
+        if ((ThreadLocalRandom.current().nextInt() & LOOKUP_SAMPLE_MASK) != 0) {
+            return 0;
+        }
+        return System.nanoTime();
+    }
+
+    public void lookupEnd(long startNanos) {
+        if (startNanos != 0) {
+            lookup.recordSince(startNanos);
+        }
+    }
+
+    public LatencyHistogram lookup() {
+        return lookup;
+    }
+
+    public LatencyHistogram register() {
+        return register;
+    }
+
+    public LatencyHistogram query() {
+        return query;
+    }
+
+    public LatencyHistogram reconnect() {
+        return reconnect;
+    }
+
+    /**
+     * 会话过期后批量重注册的耗时
+     */
+    public LatencyHistogram reregister() {
+        return reregister;
+    }
+
+    public StripedCounter cacheHit() {
+        return cacheHit;
+    }
+
+    public StripedCounter cacheMiss() {
+        return cacheMiss;
+    }
+
+    /**
+     * 客户端服务缓存收到的变化事件
+     */
+    public StripedCounter watchEvents() {
+        return watchEvents;
+    }
+
+    /**
+     * 服务端 InstanceIndex 收到的变化事件
+     */
+    public StripedCounter indexEvents() {
+        return indexEvents;
+    }
+
+    /**
+     * DataWatcher 收到的 create/delete/setData 事件
+     */
+    public StripedCounter curatorEvents() {
+        return curatorEvents;
+    }
+
+    /**
+     * 被合并掉的 watch 事件数
+     */
+    public StripedCounter collapsedEvents() {
+        return collapsedEvents;
+    }
+
+    /**
+     * 合并后实际处理的批次数
+     */
+    public StripedCounter eventBatches() {
+        return eventBatches;
+    }
+
+    /**
+     * 没有连上zk而过期不再使用的本地快照数
+     */
+    public StripedCounter expiredSnapshots() {
+        return expiredSnapshots;
+    }
+
+    public void addGaugeSource(GaugeSource source) {
+        gaugeSources.add(source);
+    }
+
+    public void removeGaugeSource(GaugeSource source) {
+        gaugeSources.remove(source);
+    }
+
+    /**
+     * 把当前全部指标导出一次
+     *
+     * @param target
+     */
+    public void export(MetricsExporter target) {
+        target.counter("zk-cache-hit", cacheHit.get());
+        target.counter("zk-cache-miss", cacheMiss.get());
+        target.counter("zk-watch-events", watchEvents.get());
+        target.counter("zk-index-events", indexEvents.get());
+        target.counter("zk-curator-events", curatorEvents.get());
+        target.counter("zk-watch-events-collapsed", collapsedEvents.get());
+        target.counter("zk-watch-batches", eventBatches.get());
+        target.counter("zk-snapshot-expired", expiredSnapshots.get());
+        for (LatencyHistogram histogram : Lists.newArrayList(lookup, register, query, reconnect, reregister)) {
+            target.histogram(histogram.getName(), histogram.snapshot());
+        }
+        for (GaugeSource source : gaugeSources) {
+            source.collect(target);
+        }
+    }
+
+    /**
+     * 定期导出
+     *
+     * @param target
+     * @param periodMs
+     */
+    public synchronized void startExport(final MetricsExporter target, long periodMs) {
+        stopExport();
+        exporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "zk-metrics-exporter");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        exporter.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    export(target);
+                } catch (Exception e) {
+                    log.error("export metrics err,", e);
+                }
+            }
+        }, periodMs, periodMs, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stopExport() {
+        if (exporter != null) {
+            exporter.shutdownNow();
+            exporter = null;
+        }
+    }
+
+    /**
+     * 导出时才计算的 gauge, 例如各服务的实例数
+     */
+    public interface GaugeSource {
+        void collect(MetricsExporter exporter);
+    }
+}
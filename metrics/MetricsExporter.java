@@ -0,0 +1,17 @@
+package com.sohu.smc.common.zk.metrics;
+
+/**
+ * 指标导出, DiscoveryMetrics 定期把全部指标推给 exporter
+ * User: shijinkui
+ */
+public interface MetricsExporter {
+
+    /**
+     * 累计计数
+     */
+    void counter(String name, long value);
+
+    void gauge(String name, double value);
+
+    void histogram(String name, LatencyHistogram.Snapshot snapshot);
+}
@@ -0,0 +1,37 @@
+package com.sohu.smc.common.zk.metrics;
+
+import com.google.common.collect.Maps;
+import com.twitter.ostrich.stats.Stats;
+
+import java.util.Map;
+
+/**
+ * 导出到 ostrich Stats: 计数按增量 incr, 直方图导出 p50/p99/p999/max 四个 gauge
+ * User: shijinkui
+ */
+public class OstrichExporter implements MetricsExporter {
+
+    private final Map<String, Long> last = Maps.newConcurrentMap();
+
+    @Override
+    public void counter(String name, long value) {
+        Long previous = last.put(name, value);
+        long delta = previous == null ? value : value - previous;
+        if (delta > 0) {
+            Stats.incr(name, (int) Math.min(delta, Integer.MAX_VALUE));
+        }
+    }
+
+    @Override
+    public void gauge(String name, double value) {
+        Stats.setGauge(name, value);
+    }
+
+    @Override
+    public void histogram(String name, LatencyHistogram.Snapshot snapshot) {
+        Stats.setGauge(name + "-p50-us", snapshot.getPercentile(50));
+        Stats.setGauge(name + "-p99-us", snapshot.getPercentile(99));
+        Stats.setGauge(name + "-p999-us", snapshot.getPercentile(99.9));
+        Stats.setGauge(name + "-max-us", snapshot.getMax());
+    }
+}
@@ -0,0 +1,37 @@
+package com.sohu.smc.common.zk.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 分段计数器, 按线程id分散到不同的 cache line 上, 高并发下 incr 不会在同一个变量上竞争.
+ * User: shijinkui
+ */
+public class StripedCounter {
+
+    private static final int STRIPES = 32;
+    private static final int MASK = STRIPES - 1;
+
+    /**
+     * 每个计数占16个long(128字节), 避免伪共享
+     */
+    private static final int PAD = 16;
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PAD);
+
+    public void incr() {
+        add(1);
+    }
+
+    public void add(long delta) {
+        int stripe = (int) (Thread.currentThread().getId() & MASK);
+        cells.getAndAdd(stripe * PAD, delta);
+    }
+
+    public long get() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += cells.get(i * PAD);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,138 @@
+package com.sohu.smc.common.zk.strategy;
+
+import com.netflix.curator.x.discovery.ServiceInstance;
+import com.sohu.smc.common.zk.OutlierDetector;
+import com.sohu.smc.common.zk.ServiceSnapshot;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 按请求key一致性hash, 每个实例在环上放 VIRTUAL_NODES 个虚拟节点, key为null时随机.
+ * 对应实例被摘除时由 select(key, detector) 沿环找下一个实例.
+ * User: shijinkui
+ */
+public class ConsistentHashStrategy implements SelectStrategy {
+
+    private static final int VIRTUAL_NODES = 160;
+
+    private volatile Ring ring = new Ring(ServiceSnapshot.EMPTY);
+
+    @Override
+    public void update(ServiceSnapshot snapshot) {
+        this.ring = new Ring(snapshot);
+    }
+
+    @Override
+    public ServiceInstance<String> select(String key) {
+        Ring current = ring;
+        int size = current.snapshot.size();
+        if (size == 0) {
+            return null;
+        }
+        if (key == null) {
+            return current.snapshot.get(ThreadLocalRandom.current().nextInt(size));
+        }
+
+        return current.snapshot.get(current.owners[current.locate(key)]);
+    }
+
+    /**
+     * 从 key 在环上的位置顺时针找第一个没有被摘除的实例, 摘除实例的 key 落到环上的下一个实例, 其他 key 不受影响;
+     * 全部被摘除时返回 key 原本对应的实例
+     *
+     * @param key
+     * @param detector
+     * @return
+     */
+    public ServiceInstance<String> select(String key, OutlierDetector detector) {
+        Ring current = ring;
+        int size = current.snapshot.size();
+        if (size == 0 || key == null) {
+            return select(key);
+        }
+
+        int[] owners = current.owners;
+        int start = current.locate(key);
+        ServiceInstance<String> first = current.snapshot.get(owners[start]);
+        if (!detector.isEjected(first)) {
+            return first;
+        }
+        for (int i = 1; i < owners.length; i++) {
+            int owner = owners[(start + i) % owners.length];
+            if (owner == owners[start]) {
+                continue;
+            }
+            ServiceInstance<String> instance = current.snapshot.get(owner);
+            if (!detector.isEjected(instance)) {
+                return instance;
+            }
+        }
+        return first;
+    }
+
+    @Override
+    public void release(ServiceInstance<String> instance) {
+    }
+
+    /**
+     * FNV-1a 加 murmur3 的 fmix, 不分配内存
+     */
+    static int hash(String key, int seed) {
+        int h = 0x811c9dc5 ^ seed;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x01000193;
+        }
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private static class Ring {
+        private final ServiceSnapshot snapshot;
+        private final int[] points;
+        private final int[] owners;
+
+        private Ring(ServiceSnapshot snapshot) {
+            this.snapshot = snapshot;
+
+            int size = snapshot.size();
+            long[] nodes = new long[size * VIRTUAL_NODES];
+            for (int i = 0; i < size; i++) {
+                ServiceInstance<String> instance = snapshot.get(i);
+                //hash by address and port so the ring survives re-registration with a new id
+                String node = instance.getAddress() + ":" + instance.getPort();
+                for (int v = 0; v < VIRTUAL_NODES; v++) {
+                    //high 32 bits: point on the ring, low 32 bits: owner index
+                    nodes[i * VIRTUAL_NODES + v] = ((long) hash(node, v) << 32) | i;
+                }
+            }
+            Arrays.sort(nodes);
+
+            this.points = new int[nodes.length];
+            this.owners = new int[nodes.length];
+            for (int i = 0; i < nodes.length; i++) {
+                points[i] = (int) (nodes[i] >> 32);
+                owners[i] = (int) nodes[i];
+            }
+        }
+
+        /**
+         * key 在环上顺时针的第一个虚拟节点
+         */
+        private int locate(String key) {
+            int index = Arrays.binarySearch(points, hash(key, 0));
+            if (index < 0) {
+                index = -index - 1;
+                if (index == points.length) {
+                    index = 0;
+                }
+            }
+            return index;
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.sohu.smc.common.zk.strategy;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 选择未完成请求最少的实例, 从随机位置开始扫描, 相同计数时不会总落在第一个实例上.
+ * User: shijinkui
+ */
+public class LeastOutstandingStrategy extends OutstandingStrategy {
+
+    @Override
+    protected int choose(State state) {
+        int size = state.size();
+        int start = ThreadLocalRandom.current().nextInt(size);
+        int best = start, min = state.outstanding(start);
+
+        for (int n = 1; n < size && min > 0; n++) {
+            int i = start + n;
+            if (i >= size) {
+                i -= size;
+            }
+            int count = state.outstanding(i);
+            if (count < min) {
+                min = count;
+                best = i;
+            }
+        }
+        return best;
+    }
+}
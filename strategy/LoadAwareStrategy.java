@@ -0,0 +1,36 @@
+package com.sohu.smc.common.zk.strategy;
+
+import com.sohu.smc.common.zk.ServiceSnapshot;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 按实例上报的负载选择: 随机取两个不同实例, 选负载分数低的一个.
+ * <p/>
+ * 负载分数取自快照构建时算好的 loadOf, 上报的 inflight 是写入时的值, 这里加上本客户端发出未完成的请求数,
+ * 两次上报之间不会全部涌向同一个实例. 没有上报负载的实例按上报实例负载的中位数处理.
+ * User: shijinkui
+ */
+public class LoadAwareStrategy extends OutstandingStrategy {
+
+    @Override
+    protected int choose(State state) {
+        int size = state.size();
+        if (size == 1) {
+            return 0;
+        }
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int a = random.nextInt(size);
+        int b = random.nextInt(size - 1);
+        if (b >= a) {
+            b++;
+        }
+        return score(state, a) <= score(state, b) ? a : b;
+    }
+
+    private static double score(State state, int i) {
+        ServiceSnapshot snapshot = state.getSnapshot();
+        return snapshot.loadOf(i) + state.outstanding(i);
+    }
+}
@@ -0,0 +1,95 @@
+package com.sohu.smc.common.zk.strategy;
+
+import com.google.common.collect.Maps;
+import com.netflix.curator.x.discovery.ServiceInstance;
+import com.sohu.smc.common.zk.ServiceSnapshot;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * 按实例未完成请求数选择的策略基类, select 时计数加一, release 时减一.
+ * <p/>
+ * 快照变化时按 instance id 把原有计数带到新快照上.
+ * User: shijinkui
+ */
+public abstract class OutstandingStrategy implements SelectStrategy {
+
+    private volatile State state = new State(ServiceSnapshot.EMPTY, null);
+
+    @Override
+    public void update(ServiceSnapshot snapshot) {
+        this.state = new State(snapshot, state);
+    }
+
+    @Override
+    public ServiceInstance<String> select(String key) {
+        State current = state;
+        if (current.snapshot.size() == 0) {
+            return null;
+        }
+
+        int index = choose(current);
+        current.counts.incrementAndGet(index);
+        return current.snapshot.get(index);
+    }
+
+    @Override
+    public void release(ServiceInstance<String> instance) {
+        State current = state;
+        Integer index = current.index.get(instance.getId());
+        if (index == null) {
+            return;
+        }
+
+        while (true) {
+            int count = current.counts.get(index);
+            if (count <= 0 || current.counts.compareAndSet(index, count, count - 1)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 返回被选中实例的下标, 快照非空时才会调用
+     *
+     * @param state
+     * @return
+     */
+    protected abstract int choose(State state);
+
+    protected static final class State {
+        private final ServiceSnapshot snapshot;
+        private final AtomicIntegerArray counts;
+        private final Map<String, Integer> index;
+
+        private State(ServiceSnapshot snapshot, State previous) {
+            this.snapshot = snapshot;
+            this.counts = new AtomicIntegerArray(snapshot.size());
+
+            this.index = Maps.newHashMapWithExpectedSize(snapshot.size());
+            for (int i = 0; i < snapshot.size(); i++) {
+                String id = snapshot.get(i).getId();
+                index.put(id, i);
+                if (previous != null) {
+                    Integer old = previous.index.get(id);
+                    if (old != null) {
+                        counts.set(i, previous.counts.get(old));
+                    }
+                }
+            }
+        }
+
+        public int size() {
+            return snapshot.size();
+        }
+
+        public ServiceSnapshot getSnapshot() {
+            return snapshot;
+        }
+
+        public int outstanding(int i) {
+            return counts.get(i);
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.sohu.smc.common.zk.strategy;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * power of two choices: 随机取两个不同实例, 选未完成请求少的一个.
+ * User: shijinkui
+ */
+public class PowerOfTwoStrategy extends OutstandingStrategy {
+
+    @Override
+    protected int choose(State state) {
+        int size = state.size();
+        if (size == 1) {
+            return 0;
+        }
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int a = random.nextInt(size);
+        int b = random.nextInt(size - 1);
+        if (b >= a) {
+            b++;
+        }
+        return state.outstanding(a) <= state.outstanding(b) ? a : b;
+    }
+}
@@ -0,0 +1,34 @@
+package com.sohu.smc.common.zk.strategy;
+
+import com.netflix.curator.x.discovery.ServiceInstance;
+import com.sohu.smc.common.zk.ServiceSnapshot;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 均匀随机
+ * User: shijinkui
+ */
+public class RandomStrategy implements SelectStrategy {
+
+    private volatile ServiceSnapshot snapshot = ServiceSnapshot.EMPTY;
+
+    @Override
+    public void update(ServiceSnapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    @Override
+    public ServiceInstance<String> select(String key) {
+        ServiceSnapshot current = snapshot;
+        int size = current.size();
+        if (size == 0) {
+            return null;
+        }
+        return current.get(ThreadLocalRandom.current().nextInt(size));
+    }
+
+    @Override
+    public void release(ServiceInstance<String> instance) {
+    }
+}
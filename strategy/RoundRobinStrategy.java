@@ -0,0 +1,35 @@
+package com.sohu.smc.common.zk.strategy;
+
+import com.netflix.curator.x.discovery.ServiceInstance;
+import com.sohu.smc.common.zk.ServiceSnapshot;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 轮询
+ * User: shijinkui
+ */
+public class RoundRobinStrategy implements SelectStrategy {
+
+    private final AtomicInteger index = new AtomicInteger(0);
+    private volatile ServiceSnapshot snapshot = ServiceSnapshot.EMPTY;
+
+    @Override
+    public void update(ServiceSnapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    @Override
+    public ServiceInstance<String> select(String key) {
+        ServiceSnapshot current = snapshot;
+        int size = current.size();
+        if (size == 0) {
+            return null;
+        }
+        return current.get((index.getAndIncrement() & Integer.MAX_VALUE) % size);
+    }
+
+    @Override
+    public void release(ServiceInstance<String> instance) {
+    }
+}
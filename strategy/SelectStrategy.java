@@ -0,0 +1,35 @@
+package com.sohu.smc.common.zk.strategy;
+
+import com.netflix.curator.x.discovery.ServiceInstance;
+import com.sohu.smc.common.zk.ServiceSnapshot;
+
+/**
+ * 实例选择策略, 每个服务一个策略对象.
+ * <p/>
+ * update 在 cacheChanged 时调用, 负责预先构建选择需要的数据; select/release 在请求路径上, 实现必须无锁.
+ * User: shijinkui
+ */
+public interface SelectStrategy {
+
+    /**
+     * 服务实例发生变化
+     *
+     * @param snapshot
+     */
+    void update(ServiceSnapshot snapshot);
+
+    /**
+     * 选择一个实例, 没有实例时返回null
+     *
+     * @param key 请求key, 只有一致性hash使用, 可以为null
+     * @return
+     */
+    ServiceInstance<String> select(String key);
+
+    /**
+     * 请求结束, 归还 select 得到的实例
+     *
+     * @param instance
+     */
+    void release(ServiceInstance<String> instance);
+}
@@ -0,0 +1,53 @@
+package com.sohu.smc.common.zk.strategy;
+
+/**
+ * 内置的选择策略
+ * User: shijinkui
+ */
+public enum StrategyType {
+
+    RANDOM {
+        @Override
+        public SelectStrategy create() {
+            return new RandomStrategy();
+        }
+    },
+    ROUND_ROBIN {
+        @Override
+        public SelectStrategy create() {
+            return new RoundRobinStrategy();
+        }
+    },
+    WEIGHTED_RANDOM {
+        @Override
+        public SelectStrategy create() {
+            return new WeightedRandomStrategy();
+        }
+    },
+    LEAST_OUTSTANDING {
+        @Override
+        public SelectStrategy create() {
+            return new LeastOutstandingStrategy();
+        }
+    },
+    POWER_OF_TWO {
+        @Override
+        public SelectStrategy create() {
+            return new PowerOfTwoStrategy();
+        }
+    },
+    CONSISTENT_HASH {
+        @Override
+        public SelectStrategy create() {
+            return new ConsistentHashStrategy();
+        }
+    },
+    LOAD_AWARE {
+        @Override
+        public SelectStrategy create() {
+            return new LoadAwareStrategy();
+        }
+    };
+
+    public abstract SelectStrategy create();
+}
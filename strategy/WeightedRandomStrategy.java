@@ -0,0 +1,68 @@
+package com.sohu.smc.common.zk.strategy;
+
+import com.netflix.curator.x.discovery.ServiceInstance;
+import com.sohu.smc.common.zk.InstancePayload;
+import com.sohu.smc.common.zk.ServiceSnapshot;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 按权重随机, 权重取自 payload 中的 weight 属性, 没有配置时为1, 小于等于0的实例不参与选择.
+ * User: shijinkui
+ */
+public class WeightedRandomStrategy implements SelectStrategy {
+
+    private volatile State state = new State(ServiceSnapshot.EMPTY);
+
+    @Override
+    public void update(ServiceSnapshot snapshot) {
+        this.state = new State(snapshot);
+    }
+
+    @Override
+    public ServiceInstance<String> select(String key) {
+        State current = state;
+        if (current.total <= 0) {
+            return null;
+        }
+
+        //first index whose cumulative weight is greater than point
+        long point = ThreadLocalRandom.current().nextLong(current.total);
+        long[] cumulative = current.cumulative;
+        int low = 0, high = cumulative.length - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (cumulative[mid] > point) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return current.snapshot.get(low);
+    }
+
+    @Override
+    public void release(ServiceInstance<String> instance) {
+    }
+
+    private static class State {
+        private final ServiceSnapshot snapshot;
+
+        /**
+         * cumulative[i] = 前i个实例(含)的权重和
+         */
+        private final long[] cumulative;
+        private final long total;
+
+        private State(ServiceSnapshot snapshot) {
+            this.snapshot = snapshot;
+            this.cumulative = new long[snapshot.size()];
+            long sum = 0;
+            for (int i = 0; i < cumulative.length; i++) {
+                sum += Math.max(0, InstancePayload.getInt(snapshot.get(i).getPayload(), InstancePayload.WEIGHT, 1));
+                cumulative[i] = sum;
+            }
+            this.total = sum;
+        }
+    }
+}